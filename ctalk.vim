@@ -14,15 +14,17 @@ syn keyword ctalkInclude import extern
 syn keyword ctalkStruct struct union module
 syn keyword ctalkDefine macro
 syn keyword ctalkTypedef typename
-syn keyword ctalkCond if elseif else switch
+syn keyword ctalkCond if elseif else switch likely unlikely
 syn keyword ctalkRepeat for
 syn keyword ctalkLabel case default
 syn keyword ctalkOp sizeof and not or as
 syn keyword ctalkType bool any_t size_t char short int long float double unsigned signed imaginary complex void
-syn keyword ctalkStoClass const volatile
+syn keyword ctalkStoClass const volatile restrict inline
 
 syn match ctalkLabel "$\w\+"
 
+syn match ctalkAttribute "\[\[\s*\(pure\|const\|hot\|cold\|noinline\|malloc\)\(\s*,\s*\(pure\|const\|hot\|cold\|noinline\|malloc\)\)*\s*\]\]"
+
 syn match ctalkIdent "\w\+"
 
 syn match ctalkSpecial display contained "\\\(.\|$\)"
@@ -54,6 +56,7 @@ let b:current_syntax = "ctalk"
 
 hi def link ctalkType Type
 hi def link ctalkStoClass StorageClass
+hi def link ctalkAttribute PreProc
 hi def link ctalkOp Operator
 hi def link ctalkIdent Identifier
 hi def link ctalkCond Conditional
@@ -0,0 +1,74 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event covering one phase of a translation, so the phases can be lined
+ * up with GC and JIT activity in a recording. It needs jdk.jfr, which Java 8
+ * only has from 8u262 on, so it is compiled in its own source set and only
+ * reached through {@link Sink}, which {@link CompileStats} looks up by name.
+ *
+ * @author YTENG
+ */
+@Name("com.ymcmp.ctalk.CompilePhase")
+@Label("CTalk Compile Phase")
+@Category({"CTalk", "Compiler"})
+@Description("Lexing, parsing, GEN_SYM, GEN_CODE or an imported module")
+final class CompilePhaseEvent extends jdk.jfr.Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Module")
+    String module;
+
+    static final class Sink implements CompileStats.EventSink {
+
+        @Override
+        public Object begin(final String phase, final String module) {
+            final CompilePhaseEvent event = new CompilePhaseEvent();
+            if (!event.isEnabled()) {
+                return null;
+            }
+            event.phase = phase;
+            event.module = module;
+            event.begin();
+            return event;
+        }
+
+        @Override
+        public void end(final Object obj) {
+            final CompilePhaseEvent event = (CompilePhaseEvent) obj;
+            event.end();
+            if (event.shouldCommit()) {
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Token;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the generated lexer and parser on their own. The source is
+ * read once, so no I/O is measured.
+ *
+ * @author YTENG
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FrontEndBenchmark {
+
+    @Param({
+        "/com/ymcmp/ctalk/compiler/hello.ct",
+        "/com/ymcmp/ctalk/compiler/demo.ct",
+        "/com/ymcmp/ctalk/compiler/foo.ct",
+        "/std/string.ct",
+        "/std/io.ct",
+        "/std/memory.ct"
+    })
+    public String file;
+
+    private String source;
+
+    @Setup
+    public void setup() throws IOException {
+        source = Sources.read(Sources.resource(file));
+    }
+
+    @Benchmark
+    public int lex() {
+        final GrammarLexer lexer = new GrammarLexer(CharStreams.fromString(source));
+        int count = 0;
+        while (lexer.nextToken().getType() != Token.EOF) {
+            ++count;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public GrammarParser.ProgramContext parse() {
+        final GrammarParser parser = new GrammarParser(new CommonTokenStream(new GrammarLexer(CharStreams.fromString(source))));
+        return parser.program();
+    }
+}
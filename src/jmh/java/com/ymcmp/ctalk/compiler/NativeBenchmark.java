@@ -0,0 +1,137 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Measures the generated C instead of the compiler. Each program is
+ * translated into a single C file and once more with {@code --separate},
+ * both are built at -O2 and the best wall time of each executable is
+ * reported, next to the same program written by hand in C if there is one.
+ *
+ * <ul>
+ * <li>strloop.ct calls the std::string accessors in a tight loop. Without
+ * inline functions the separate build pays a call for every accessor.</li>
+ * <li>vecloop.ct fills and sums a std::vector of longs, vecloop.c does the
+ * same with a growable array written by hand.</li>
+ * </ul>
+ *
+ * Arguments: {@code [runs] [iterations]}, by default 5 runs with the
+ * iterations each program picks by itself.
+ *
+ * @author YTENG
+ */
+public final class NativeBenchmark {
+
+    private static final String[] PROGRAMS = {"strloop", "vecloop"};
+
+    private NativeBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        final List<String> extraArgs = args.length > 1 ? Collections.singletonList(args[1]) : Collections.emptyList();
+
+        final String compiler = NativeBuilder.findCompiler();
+        if (compiler == null) {
+            throw new RuntimeException("No C compiler found, set CC");
+        }
+        final Path root = Files.createTempDirectory("ctalk-native");
+        try {
+            final NativeBuilder builder = new NativeBuilder(compiler, Collections.singletonList("-O2"), 1, root.resolve("objects"));
+            System.out.printf("%-10s %-10s %12s  %s%n", "program", "build", "best ms", "output");
+            for (final String program : PROGRAMS) {
+                final Path dir = Files.createDirectory(root.resolve(program));
+                final Path input = Paths.get(Sources.resource("/com/ymcmp/ctalk/compiler/" + program + ".ct"));
+
+                final Driver single = new Driver(new ProgramParser(), new ModuleCache(), null);
+                final Path singleC = dir.resolve("single.c");
+                single.compile(input, "main:argc:argv", singleC);
+                final Path singleExe = dir.resolve("single");
+                builder.build(Collections.singletonList(singleC), singleExe);
+
+                final Driver separate = new Driver(new ProgramParser(), new ModuleCache(), dir.resolve("cti"));
+                final Path manifest = separate.compileSeparate(input, "main:argc:argv", dir.resolve("separate"));
+                final Path separateExe = dir.resolve("separate-exe");
+                builder.build(NativeBuilder.readManifest(manifest), separateExe);
+
+                run(program, "single", singleExe, extraArgs, runs);
+                run(program, "separate", separateExe, extraArgs, runs);
+
+                if (Sources.class.getResource("/com/ymcmp/ctalk/compiler/" + program + ".c") != null) {
+                    final Path handC = dir.resolve("hand.c");
+                    Files.copy(Paths.get(Sources.resource("/com/ymcmp/ctalk/compiler/" + program + ".c")), handC);
+                    final Path handExe = dir.resolve("hand");
+                    builder.build(Collections.singletonList(handC), handExe);
+                    run(program, "C", handExe, extraArgs, runs);
+                }
+            }
+        } finally {
+            try (final Stream<Path> s = Files.walk(root)) {
+                for (final Path p : s.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(p);
+                }
+            }
+        }
+    }
+
+    private static void run(final String program, final String build, final Path exe,
+                            final List<String> extraArgs, final int runs) throws IOException, InterruptedException {
+        final List<String> cmd = new ArrayList<>();
+        cmd.add(exe.toString());
+        cmd.addAll(extraArgs);
+        final long[] nanos = new long[runs];
+        String output = null;
+        for (int i = 0; i < runs; ++i) {
+            final long start = System.nanoTime();
+            final Process proc = new ProcessBuilder(cmd)
+                    .redirectErrorStream(true)
+                    .start();
+            final List<String> lines;
+            try (final Stream<String> s = new BufferedReader(new InputStreamReader(proc.getInputStream())).lines()) {
+                lines = s.collect(Collectors.toList());
+            }
+            if (proc.waitFor() != 0) {
+                throw new RuntimeException(program + " (" + build + ") exited with " + proc.exitValue());
+            }
+            nanos[i] = System.nanoTime() - start;
+            output = String.join(" ", lines);
+        }
+        Arrays.sort(nanos);
+        System.out.printf("%-10s %-10s %12.3f  %s%n", program, build, nanos[0] / 1e6, output);
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes synthetic CTalk programs of a given shape. The main file spreads
+ * its functions over nested modules ({@code m0}, {@code m0::m1}, ...) and
+ * imports a number of small generated modules that sit next to it.
+ *
+ * Every function has an if / elseif chain and returns a long expression,
+ * and calls the previous function of its module so the calls resolve
+ * through the namespace lookup like real code does.
+ *
+ * @author YTENG
+ */
+public final class ProgramGenerator {
+
+    public static final class Shape {
+
+        public final int functions;
+        public final int depth;
+        public final int branches;
+        public final int terms;
+        public final int imports;
+
+        /**
+         * @param functions Number of functions in the main file
+         * @param depth Number of nested modules they are spread over
+         * @param branches Length of the if / elseif chain in each function
+         * @param terms Number of terms in the expression each function returns
+         * @param imports Number of generated modules the main file imports
+         */
+        public Shape(int functions, int depth, int branches, int terms, int imports) {
+            if (functions < 1 || depth < 1 || branches < 1 || terms < 1 || imports < 0) {
+                throw new IllegalArgumentException("Illegal program shape " + this);
+            }
+            this.functions = functions;
+            this.depth = depth;
+            this.branches = branches;
+            this.terms = terms;
+            this.imports = imports;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("functions=%d,depth=%d,branches=%d,terms=%d,imports=%d",
+                                 functions, depth, branches, terms, imports);
+        }
+    }
+
+    private ProgramGenerator() {
+    }
+
+    /**
+     * Writes the program and the modules it imports.
+     *
+     * @param shape What the program looks like
+     * @param dir Where the files go, it is created if needed
+     * @return The main file, its entry point is {@code main:argc:argv}
+     * @throws IOException If a file cannot be written
+     */
+    public static Path write(final Shape shape, final Path dir) throws IOException {
+        Files.createDirectories(dir);
+        for (int i = 0; i < shape.imports; ++i) {
+            Files.write(dir.resolve("gen" + i + ".ct"), importedModule(i).getBytes(StandardCharsets.UTF_8));
+        }
+        final Path main = dir.resolve("main.ct");
+        Files.write(main, mainProgram(shape).getBytes(StandardCharsets.UTF_8));
+        return main;
+    }
+
+    public static String importedModule(final int index) {
+        return "module gen" + index + "\n"
+                + "    export function value:int x:int\n"
+                + "        return x * " + (index + 2) + " + " + index + ";\n"
+                + "    end;\n"
+                + "end;\n";
+    }
+
+    public static String mainProgram(final Shape shape) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < shape.imports; ++i) {
+            sb.append("import gen").append(i).append(";\n");
+        }
+        sb.append('\n');
+
+        final StringBuilder ns = new StringBuilder();
+        int fn = 0;
+        for (int m = 0; m < shape.depth; ++m) {
+            if (m > 0) {
+                ns.append("::");
+            }
+            ns.append('m').append(m);
+            // The first modules get the remainder
+            final int count = shape.functions / shape.depth + (m < shape.functions % shape.depth ? 1 : 0);
+            sb.append("module ").append(ns).append('\n');
+            for (int i = 0; i < count; ++i, ++fn) {
+                function(sb, shape, i, m == 0 && i == 0);
+            }
+            sb.append("end;\n\n");
+        }
+
+        sb.append("function main:int argc:int, argv:[[char]]\n")
+                .append("    return m0::f0 x:argc;\n")
+                .append("end;\n");
+        return sb.toString();
+    }
+
+    private static void function(final StringBuilder sb, final Shape shape, final int index, final boolean callImports) {
+        sb.append("    export function f").append(index).append(":int x:int\n");
+        sb.append("        y = x : int;\n");
+        if (index > 0) {
+            sb.append("        y = _::f").append(index - 1).append(" x:y;\n");
+        }
+        if (callImports) {
+            for (int i = 0; i < shape.imports; ++i) {
+                sb.append("        y = y + gen").append(i).append("::value x:y;\n");
+            }
+        }
+        for (int i = 0; i < shape.branches; ++i) {
+            sb.append(i == 0 ? "        if" : "        elseif")
+                    .append(" x == ").append(i).append('\n')
+                    .append("            y = y + ").append(i + 1).append(";\n");
+        }
+        sb.append("        else\n")
+                .append("            y = y - 1;\n")
+                .append("        end;\n");
+        sb.append("        return y");
+        for (int i = 0; i < shape.terms; ++i) {
+            sb.append(i % 2 == 0 ? " + x * " : " - y / ").append(i + 1);
+        }
+        sb.append(";\n");
+        sb.append("    end;\n");
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import org.antlr.v4.runtime.CharStreams;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Sweeps one dimension of the generated programs at a time (the others stay
+ * at their base value) and reports the median time to parse and translate
+ * each program along with the peak heap used while doing it. The growth
+ * column is the time ratio over the previous (half as large) program, so
+ * anything well above 2 is superlinear.
+ *
+ * Arguments: {@code [runs] [steps]}, by default 5 runs per program and 6
+ * doublings per dimension.
+ *
+ * @author YTENG
+ */
+public final class ScalingBenchmark {
+
+    private static final ProgramGenerator.Shape BASE = new ProgramGenerator.Shape(8, 1, 2, 2, 0);
+
+    private ScalingBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        final int steps = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+
+        final Path root = Files.createTempDirectory("ctalk-scaling");
+        try {
+            sweep(root, "functions", steps, runs, n -> new ProgramGenerator.Shape(BASE.functions * n, BASE.depth, BASE.branches, BASE.terms, BASE.imports));
+            sweep(root, "depth", steps, runs, n -> new ProgramGenerator.Shape(BASE.functions * n, n, BASE.branches, BASE.terms, BASE.imports));
+            sweep(root, "branches", steps, runs, n -> new ProgramGenerator.Shape(BASE.functions, BASE.depth, BASE.branches * n, BASE.terms, BASE.imports));
+            sweep(root, "terms", steps, runs, n -> new ProgramGenerator.Shape(BASE.functions, BASE.depth, BASE.branches, BASE.terms * n, BASE.imports));
+            sweep(root, "imports", steps, runs, n -> new ProgramGenerator.Shape(BASE.functions, BASE.depth, BASE.branches, BASE.terms, n));
+        } finally {
+            try (final Stream<Path> s = Files.walk(root)) {
+                for (final Path p : s.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(p);
+                }
+            }
+        }
+    }
+
+    private static void sweep(final Path root, final String dimension, final int steps, final int runs,
+                              final IntFunction<ProgramGenerator.Shape> shapeOf) throws IOException {
+        System.out.printf("%n%-10s %6s %8s %12s %8s %12s%n", dimension, "n", "lines", "median ms", "growth", "peak heap MB");
+        double prev = Double.NaN;
+        for (int step = 0, n = 1; step < steps; ++step, n *= 2) {
+            final ProgramGenerator.Shape shape = shapeOf.apply(n);
+            final Path main = ProgramGenerator.write(shape, root.resolve(dimension + n));
+            final int lines = countLines(main);
+
+            // The first run is warm up
+            translate(main);
+            final long[] nanos = new long[runs];
+            long peak = 0;
+            for (int i = 0; i < runs; ++i) {
+                final long before = resetHeap();
+                final long start = System.nanoTime();
+                translate(main);
+                nanos[i] = System.nanoTime() - start;
+                peak = Math.max(peak, peakHeap() - before);
+            }
+            Arrays.sort(nanos);
+            final double median = nanos[runs / 2] / 1e6;
+            System.out.printf("%-10s %6d %8d %12.3f %8s %12.2f%n", "", n, lines, median,
+                              Double.isNaN(prev) ? "-" : String.format("%.2f", median / prev),
+                              peak / (1024.0 * 1024.0));
+            prev = median;
+        }
+    }
+
+    private static void translate(final Path main) throws IOException {
+        final ProgramParser parser = new ProgramParser();
+        final Translator translator = new Translator(main.toUri(), new ModuleCache());
+        translator.setProgramParser(parser);
+        translator.generate(parser.parse(CharStreams.fromPath(main)), "main:argc:argv", NullWriter.INSTANCE);
+    }
+
+    private static int countLines(final Path file) throws IOException {
+        try (final Stream<String> s = Files.lines(file)) {
+            return (int) s.count();
+        }
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        final List<MemoryPoolMXBean> ret = new ArrayList<>();
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                ret.add(pool);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return The heap in use right after a GC, the baseline for
+     * {@link #peakHeap()}
+     */
+    private static long resetHeap() {
+        System.gc();
+        long used = 0;
+        for (final MemoryPoolMXBean pool : heapPools()) {
+            pool.resetPeakUsage();
+            used += pool.getUsage().getUsed();
+        }
+        return used;
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (final MemoryPoolMXBean pool : heapPools()) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    private static final class NullWriter extends Writer {
+
+        static final NullWriter INSTANCE = new NullWriter();
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Locates the CTalk programs used by the benchmarks on the class path.
+ *
+ * @author YTENG
+ */
+final class Sources {
+
+    static final String[] ALL = {
+        "/com/ymcmp/ctalk/compiler/hello.ct",
+        "/com/ymcmp/ctalk/compiler/demo.ct",
+        "/com/ymcmp/ctalk/compiler/foo.ct",
+        "/std/string.ct",
+        "/std/io.ct",
+        "/std/memory.ct"
+    };
+
+    private Sources() {
+    }
+
+    static URI resource(final String path) {
+        final URL url = Sources.class.getResource(path);
+        if (url == null) {
+            throw new RuntimeException("Missing benchmark input " + path);
+        }
+        try {
+            return url.toURI();
+        } catch (URISyntaxException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    static String read(final URI uri) throws IOException {
+        return new String(ModuleCache.readAll(uri), StandardCharsets.UTF_8);
+    }
+}
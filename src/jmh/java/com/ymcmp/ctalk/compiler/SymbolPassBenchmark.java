@@ -0,0 +1,171 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Translates programs built on std::string, split into GEN_SYM and the
+ * whole translation so the share of the symbol pass shows.
+ *
+ * {@code declarations} is a generated file with many exported functions and
+ * module variables, which GEN_SYM registers without translating their
+ * bodies or initializers. {@code imports} is a small program whose time
+ * goes into its imports. Both passes get the parse trees of the imports
+ * from the module cache, so an import is only lexed and parsed once per
+ * translation.
+ *
+ * @author YTENG
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SymbolPassBenchmark {
+
+    private static final int DECLARATIONS = 300;
+
+    @Param({"declarations", "imports"})
+    public String program;
+
+    private final URI uri = URI.create("file:///bench.ct");
+    private GrammarParser.ProgramContext tree;
+    private final ModuleCache warmCache = new ModuleCache();
+    private long symbolNanos;
+    private long runs;
+
+    @Setup
+    public void setup() {
+        final String source = "declarations".equals(program) ? declarations() : imports();
+        final GrammarLexer lexer = new GrammarLexer(CharStreams.fromString(source));
+        tree = new GrammarParser(new CommonTokenStream(lexer)).program();
+
+        // Both passes must share the parse trees of the imports
+        final ModuleCache check = new ModuleCache();
+        translate(check, CompileStats.DISABLED);
+        if (check.misses() != check.size()) {
+            throw new IllegalStateException("Imports were parsed more than once: " + check);
+        }
+        translate(warmCache, CompileStats.DISABLED);
+    }
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        symbolNanos = 0;
+        runs = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+        if (runs > 0) {
+            System.out.printf("GEN_SYM %.3f us of ", symbolNanos / 1000.0 / runs);
+        }
+    }
+
+    private String translate(final ModuleCache moduleCache, final CompileStats stats) {
+        final Translator translator = new Translator(uri, moduleCache);
+        translator.setStats(stats);
+        return translator.generate(tree, "main:argc:argv");
+    }
+
+    private String measure(final ModuleCache moduleCache) {
+        final CompileStats stats = new CompileStats();
+        final String code = translate(moduleCache, stats);
+        symbolNanos += stats.nanos("GEN_SYM");
+        ++runs;
+        return code;
+    }
+
+    /**
+     * Both passes with an empty module cache, like a single compiler run.
+     * GEN_SYM includes parsing the imports here. The time GEN_SYM took is
+     * reported after every iteration.
+     */
+    @Benchmark
+    public String cold() {
+        return measure(new ModuleCache());
+    }
+
+    /**
+     * Both passes with the imports already parsed, like the compile server,
+     * so GEN_SYM only walks the declarations.
+     */
+    @Benchmark
+    public String warm() {
+        return measure(warmCache);
+    }
+
+    private static String declarations() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("import std::string;\n\n");
+        sb.append("module decls\n");
+        for (int i = 0; i < DECLARATIONS; ++i) {
+            sb.append("    export v").append(i).append(" = ").append(i).append(" : size_t;\n");
+            sb.append("    export function f").append(i).append(":std::string from:[const char]\n")
+                    .append("        s = std::string::new from:from : std::string;\n")
+                    .append("        std::string::append of:@s ch:'-' count:").append(i % 8 + 1).append(";\n")
+                    .append("        std::string::push_back of:@s ch:'!';\n")
+                    .append("        return s;\n")
+                    .append("    end;\n");
+        }
+        sb.append("end;\n\n");
+        sb.append("function main:int argc:int, argv:[[char]]\n")
+                .append("    s = decls::f0 from:\"x\" : std::string;\n")
+                .append("    std::string::delete of:@s;\n")
+                .append("    return 0;\n")
+                .append("end;\n");
+        return sb.toString();
+    }
+
+    private static String imports() {
+        return "import std::io;\n"
+                + "import std::string;\n\n"
+                + "function main:int argc:int, argv:[[char]]\n"
+                + "    s = std::string::new from:\"Hello, world!\" : std::string;\n"
+                + "    std::string::push_back of:@s ch:'!';\n"
+                + "    std::string::println of:@s;\n"
+                + "    std::string::delete of:@s;\n"
+                + "    return 0;\n"
+                + "end;\n";
+    }
+}
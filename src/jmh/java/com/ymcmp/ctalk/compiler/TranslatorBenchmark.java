@@ -0,0 +1,98 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses and translates a whole program, imports included. The std modules
+ * import each other, so they double as import heavy inputs.
+ *
+ * {@code cold} starts from an empty module cache every time, so every
+ * imported module is parsed again. {@code warm} reuses parse trees of
+ * imported modules like the compile server does.
+ *
+ * @author YTENG
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TranslatorBenchmark {
+
+    @Param({
+        "/com/ymcmp/ctalk/compiler/hello.ct",
+        "/com/ymcmp/ctalk/compiler/demo.ct",
+        "/com/ymcmp/ctalk/compiler/foo.ct",
+        "/std/string.ct",
+        "/std/io.ct",
+        "/std/memory.ct"
+    })
+    public String file;
+
+    private URI uri;
+    private String source;
+    private final ProgramParser parser = new ProgramParser();
+    private final ModuleCache warmCache = new ModuleCache();
+
+    @Setup
+    public void setup() throws IOException {
+        uri = Sources.resource(file);
+        source = Sources.read(uri);
+        translate(warmCache);
+    }
+
+    private String translate(final ModuleCache cache) {
+        final Translator translator = new Translator(uri, cache);
+        translator.setProgramParser(parser);
+        return translator.generate(parser.parse(CharStreams.fromString(source)), "main:argc:argv");
+    }
+
+    @Benchmark
+    public String cold() {
+        return translate(new ModuleCache());
+    }
+
+    @Benchmark
+    public String warm() {
+        return translate(warmCache);
+    }
+}
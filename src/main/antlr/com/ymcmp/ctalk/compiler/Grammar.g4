@@ -317,6 +317,10 @@ K_FUNCTION
     : 'function'
     ;
 
+K_INLINE
+    : 'inline'
+    ;
+
 K_MACRO
     : 'macro'
     ;
@@ -341,6 +345,10 @@ K_VOLATILE
     : 'volatile'
     ;
 
+K_RESTRICT
+    : 'restrict'
+    ;
+
 K_MODULE
     : 'module'
     ;
@@ -401,6 +409,14 @@ K_ELSE
     : 'else'
     ;
 
+K_LIKELY
+    : 'likely'
+    ;
+
+K_UNLIKELY
+    : 'unlikely'
+    ;
+
 K_BREAK
     : 'break'
     ;
@@ -490,12 +506,21 @@ lesserTypeId
     ;
 
 typeId
-    : c=K_CONST? v=K_VOLATILE? t=lesserTypeId # basicTypeId
-    | K_VOLATILE K_CONST t=lesserTypeId # vconstTypeId
+    : c=K_CONST? v=K_VOLATILE? r=K_RESTRICT? t=lesserTypeId # basicTypeId
+    | K_VOLATILE K_CONST r=K_RESTRICT? t=lesserTypeId # vconstTypeId
+    ;
+
+attributes
+    : LSQUARE LSQUARE a+=attribute (COMMA a+=attribute)* RSQUARE RSQUARE
+    ;
+
+attribute
+    : K_CONST
+    | IDENT
     ;
 
 defFunction
-    : K_FUNCTION n=IDENT r=retType? p=defParams s+=statement* K_END
+    : a=attributes? i=K_INLINE? K_FUNCTION n=IDENT r=retType? p=defParams s+=statement* K_END
     ;
 
 retType
@@ -565,11 +590,11 @@ switchFlow
     ;
 
 defaultFlow
-    : K_DEFAULT COLON s+=statement*
+    : h=K_UNLIKELY? K_DEFAULT COLON s+=statement*
     ;
 
 caseFlow
-    : K_CASE e=expression COLON s+=statement*
+    : h=K_UNLIKELY? K_CASE e=expression COLON s+=statement*
     ;
 
 forFlow
@@ -581,12 +606,17 @@ forCondition
     | i=expression? COMMA c=expression? COMMA f=expression?
     ;
 
+branchHint
+    : K_LIKELY
+    | K_UNLIKELY
+    ;
+
 ifFlow
-    : K_IF c=expression s+=statement* a+=elseIfFlow* e=elseFlow? K_END
+    : K_IF h=branchHint? c=expression s+=statement* a+=elseIfFlow* e=elseFlow? K_END
     ;
 
 elseIfFlow
-    : K_ELSEIF c=expression s+=statement*
+    : K_ELSEIF h=branchHint? c=expression s+=statement*
     ;
 
 elseFlow
@@ -675,7 +705,7 @@ defMParams
     ;
 
 defExternal
-    : K_EXTERN K_FUNCTION n=IDENT r=retType? p=defParams e=L_STRING # defExternFunction
+    : a=attributes? K_EXTERN K_FUNCTION n=IDENT r=retType? p=defParams e=L_STRING # defExternFunction
     | K_EXTERN K_MACRO n=IDENT p=defMParams? e=L_STRING # defExternMacro
     | K_EXTERN K_TYPE n=IDENT e=L_STRING # defExternType
     ;
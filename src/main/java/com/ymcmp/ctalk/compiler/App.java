@@ -24,38 +24,341 @@
 
 package com.ymcmp.ctalk.compiler;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URISyntaxException;
-import java.net.URL;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import org.antlr.v4.runtime.CharStream;
-import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
-import org.antlr.v4.runtime.TokenStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
 
 public class App {
 
+    private static final String USAGE = "Supply two parameters in the following order:\n"
+            + "- file name of the main function\n"
+            + "- name of the main function\n"
+            + "\n"
+            + "For example: hello.ct main:argc:argv\n"
+            + "\n"
+            + "Options:\n"
+            + "  -o <file>            Write the C code to file instead of stdout\n"
+            + "  --cti <dir>          Store and reuse interface files of imported modules in dir\n"
+            + "  --incremental        Also keep the interface of the file itself in the --cti dir and only\n"
+            + "                       translate what changed since the last run\n"
+            + "  --separate <dir>     Write one C file and header per module to dir, along with a link manifest\n"
+            + "                       listing their objects (requires --cti)\n"
+            + "  --parse <mode>       Parser prediction mode: ll (default), sll or auto (SLL, then LL on failure)\n"
+            + "  --parse-times        Report the time spent in each prediction mode on stderr\n"
+            + "  --auto-inline        Make hidden functions of a single statement inline\n"
+            + "  --dce                Only emit the functions, variables and types reachable from the main\n"
+            + "                       function (cannot be combined with --cti)\n"
+            + "  --keep-exported      With --dce, also keep every exported symbol, for building libraries\n"
+            + "  --stats              Report the time spent in each phase and import of every file, along with\n"
+            + "                       token, node and symbol counts, output size and peak heap on stderr\n"
+            + "\n"
+            + "Building (requires -o or --separate):\n"
+            + "  --build <file>       Compile the C code and link it into the executable file, objects are\n"
+            + "                       cached and only compiled again when their C code or headers change\n"
+            + "  --cc <compiler>      C compiler to use (default: $CC, otherwise gcc, clang or cc on the PATH)\n"
+            + "  --cflags <flags>     Flags passed to the C compiler, separated by spaces\n"
+            + "  --object-cache <dir> Where compiled objects are cached (default: ~/.ctalk/objects)\n"
+            + "  -j <n>               Number of C files compiled in parallel (default: number of cores)\n"
+            + "\n"
+            + "Server mode (no file name or function name):\n"
+            + "  --server             Keep translating requests read from stdin, one per line:\n"
+            + "                       input-file<TAB>entry-point<TAB>output-file\n"
+            + "  --server --port <n>  Same, but read requests from a loopback socket; clients must first send\n"
+            + "                       the token the server writes to ~/.ctalk/server-<n>.token\n"
+            + "  --connect <n>        Forward the translation to a server on port n (requires -o)\n"
+            + "\n"
+            + "Batch mode (files and directories instead of file name and function name):\n"
+            + "  --batch              Translate every given .ct file, directories are searched recursively\n"
+            + "  -e <function>        Name of the main function, the same for every file\n"
+            + "  -d <dir>             Write the C files to dir instead of next to the inputs\n"
+            + "  -j <n>               Number of files translated in parallel (default: number of cores)";
+
+    private static final class UsageException extends RuntimeException {
+
+        private static final long serialVersionUID = 4082715536521L;
+
+        UsageException(String message) {
+            super(message);
+        }
+    }
+
     /**
      * @param args the command line arguments
      * @throws java.io.IOException
      * @throws java.net.URISyntaxException
      */
     public static void main(String[] args) throws IOException, URISyntaxException {
-        final String entryPoint;
-        final URL res;
-        switch (args.length) {
-        case 2:
-            res = Paths.get(args[0]).toUri().toURL();
-            entryPoint = args[1];
-            break;
-        default:
-            System.err.println("Supply two parameters in the following order:\n- file name of the main function\n- name of the main function\n\nFor example: hello.ct main:argc:argv");
+        try {
+            run(args);
+        } catch (UsageException ex) {
+            System.err.println(ex.getMessage());
+            // Failed translations exit with 1
+            System.exit(2);
+        }
+    }
+
+    private static String optionValue(final String[] args, final int i, final String expects) {
+        if (i >= args.length) {
+            throw new UsageException("Option " + args[i - 1] + " expects " + expects);
+        }
+        return args[i];
+    }
+
+    private static int portValue(final String[] args, final int i) {
+        final String value = optionValue(args, i, "a port number");
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new UsageException("Illegal port number " + value);
+        }
+    }
+
+    private static void run(String[] args) throws IOException {
+        final List<String> params = new ArrayList<>();
+        Path interfaceDir = null;
+        boolean incremental = false;
+        Path separateDir = null;
+        Path output = null;
+        ProgramParser.Mode parseMode = ProgramParser.Mode.LL;
+        boolean parseTimes = false;
+        boolean stats = false;
+        boolean dce = false;
+        boolean autoInline = false;
+        boolean keepExported = false;
+        boolean server = false;
+        int port = -1;
+        int connect = -1;
+        boolean batch = false;
+        String batchEntry = null;
+        Path outputDir = null;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        Path executable = null;
+        String compiler = null;
+        final List<String> cflags = new ArrayList<>();
+        Path objectCache = Paths.get(System.getProperty("user.home"), ".ctalk", "objects");
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+            case "-o":
+                output = Paths.get(optionValue(args, ++i, "a file name"));
+                break;
+            case "--cti":
+                interfaceDir = Paths.get(optionValue(args, ++i, "a directory"));
+                break;
+            case "--incremental":
+                incremental = true;
+                break;
+            case "--separate":
+                separateDir = Paths.get(optionValue(args, ++i, "a directory"));
+                break;
+            case "--parse": {
+                final String mode = optionValue(args, ++i, "ll, sll or auto");
+                switch (mode) {
+                case "auto":
+                    parseMode = ProgramParser.Mode.TWO_STAGE;
+                    break;
+                case "sll":
+                    parseMode = ProgramParser.Mode.SLL;
+                    break;
+                case "ll":
+                    parseMode = ProgramParser.Mode.LL;
+                    break;
+                default:
+                    throw new UsageException("Unknown parse mode " + mode + ", expected ll, sll or auto");
+                }
+                break;
+            }
+            case "--parse-times":
+                parseTimes = true;
+                break;
+            case "--auto-inline":
+                autoInline = true;
+                break;
+            case "--dce":
+                dce = true;
+                break;
+            case "--keep-exported":
+                keepExported = true;
+                break;
+            case "--build":
+                executable = Paths.get(optionValue(args, ++i, "a file name"));
+                break;
+            case "--cc":
+                compiler = optionValue(args, ++i, "a compiler");
+                break;
+            case "--cflags":
+                for (final String flag : optionValue(args, ++i, "compiler flags").trim().split("\\s+")) {
+                    if (!flag.isEmpty()) {
+                        cflags.add(flag);
+                    }
+                }
+                break;
+            case "--object-cache":
+                objectCache = Paths.get(optionValue(args, ++i, "a directory"));
+                break;
+            case "--stats":
+                stats = true;
+                break;
+            case "--server":
+                server = true;
+                break;
+            case "--port":
+                port = portValue(args, ++i);
+                break;
+            case "--connect":
+                connect = portValue(args, ++i);
+                break;
+            case "--batch":
+                batch = true;
+                break;
+            case "-e":
+                batchEntry = optionValue(args, ++i, "a function name");
+                break;
+            case "-d":
+                outputDir = Paths.get(optionValue(args, ++i, "a directory"));
+                break;
+            case "-j": {
+                final String value = optionValue(args, ++i, "a number");
+                try {
+                    jobs = Integer.parseInt(value);
+                } catch (NumberFormatException ex) {
+                    throw new UsageException("Illegal number of jobs " + value);
+                }
+                if (jobs < 1) {
+                    throw new UsageException("Illegal number of jobs " + value);
+                }
+                break;
+            }
+            default:
+                params.add(args[i]);
+                break;
+            }
+        }
+
+        final ProgramParser parser = new ProgramParser(parseMode);
+        final Driver driver = new Driver(parser, ModuleCache.shared(), interfaceDir);
+        if (incremental) {
+            if (interfaceDir == null) {
+                throw new UsageException("Option --incremental requires --cti");
+            }
+            driver.setIncremental(true);
+        }
+        if (keepExported && !dce) {
+            throw new UsageException("Option --keep-exported requires --dce");
+        }
+        if (dce) {
+            if (interfaceDir != null) {
+                throw new UsageException("Option --dce cannot be combined with --cti");
+            }
+            driver.setDeadCodeElimination(true, keepExported);
+        }
+        driver.setAutoInline(autoInline);
+        if (stats) {
+            driver.setStatsOutput(System.err);
+        }
+        if (separateDir != null && (server || batch || connect >= 0)) {
+            throw new UsageException("Option --separate only works on a single file");
+        }
+        if (executable != null && (server || batch || connect >= 0)) {
+            throw new UsageException("Option --build only works on a single file");
+        }
+        if (server) {
+            if (!params.isEmpty()) {
+                throw new UsageException(USAGE);
+            }
+            final CompileServer cs = new CompileServer(driver);
+            if (port < 0) {
+                cs.serveStdin();
+            } else {
+                cs.serveSocket(port);
+            }
+            return;
+        }
+
+        if (batch) {
+            if (batchEntry == null || params.isEmpty()) {
+                throw new UsageException("Batch mode requires -e and at least one file or directory");
+            }
+            final List<Path> inputs = BatchCompiler.collectInputs(params.stream()
+                    .map(Paths::get)
+                    .collect(Collectors.toList()));
+            final long start = System.nanoTime();
+            final List<BatchCompiler.Result> results;
+            try {
+                results = new BatchCompiler(driver, jobs).compile(inputs, batchEntry, outputDir);
+            } catch (IllegalArgumentException ex) {
+                throw new UsageException(ex.getMessage());
+            }
+            BatchCompiler.printSummary(results, System.nanoTime() - start, System.err);
+            if (parseTimes) {
+                System.err.println(parser.report());
+            }
+            if (results.stream().anyMatch(BatchCompiler.Result::failed)) {
+                System.exit(1);
+            }
+            return;
+        }
+
+        if (params.size() != 2) {
+            throw new UsageException(USAGE);
+        }
+        final Path input = Paths.get(params.get(0));
+        final String entryPoint = params.get(1);
+        if (connect >= 0) {
+            if (output == null) {
+                throw new UsageException("Option --connect requires -o");
+            }
+            final String response = CompileServer.forward(connect, input, entryPoint, output);
+            if (!response.startsWith(CompileServer.OK)) {
+                System.err.println(response);
+                System.exit(1);
+            }
             return;
         }
-        final CharStream inp = CharStreams.fromStream(res.openStream());
-        final GrammarLexer lex = new GrammarLexer(inp);
-        final TokenStream toks = new CommonTokenStream(lex);
-        final GrammarParser parser = new GrammarParser(toks);
-        System.out.println(new Translator(res.toURI()).generate(parser.program(), entryPoint));
+
+        if (separateDir != null) {
+            if (interfaceDir == null) {
+                throw new UsageException("Option --separate requires --cti");
+            }
+            final Path manifest = driver.compileSeparate(input, entryPoint, separateDir);
+            if (executable != null) {
+                build(NativeBuilder.readManifest(manifest), executable, compiler, cflags, jobs, objectCache);
+            }
+            return;
+        }
+        if (output == null) {
+            if (executable != null) {
+                throw new UsageException("Option --build requires -o or --separate");
+            }
+            final Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+            driver.compile(input, entryPoint, out);
+        } else {
+            driver.compile(input, entryPoint, output);
+        }
+        if (parseTimes) {
+            System.err.println(parser.report());
+        }
+        if (executable != null) {
+            build(Collections.singletonList(output), executable, compiler, cflags, jobs, objectCache);
+        }
+    }
+
+    private static void build(final List<Path> sources, final Path executable, String compiler,
+                              final List<String> cflags, final int jobs, final Path objectCache) throws IOException {
+        if (compiler == null) {
+            compiler = NativeBuilder.findCompiler();
+            if (compiler == null) {
+                throw new UsageException("No C compiler found on the PATH, use --cc");
+            }
+        }
+        final NativeBuilder builder = new NativeBuilder(compiler, cflags, jobs, objectCache);
+        System.err.println(builder.build(sources, executable));
     }
 }
@@ -0,0 +1,177 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Translates many CTalk files at once, one Translator per file, spread over a
+ * ForkJoinPool. Each input {@code x.ct} becomes {@code x.c}, either next to
+ * the input or inside an output directory. Results are reported in the order
+ * of the (sorted) inputs no matter which file finishes first.
+ *
+ * @author YTENG
+ */
+public class BatchCompiler {
+
+    public static class Result {
+
+        public final Path input;
+        public final Path output;
+        public final long nanos;
+        public final String error;
+
+        public Result(Path input, Path output, long nanos, String error) {
+            this.input = input;
+            this.output = output;
+            this.nanos = nanos;
+            this.error = error;
+        }
+
+        public boolean failed() {
+            return error != null;
+        }
+
+        @Override
+        public String toString() {
+            if (failed()) {
+                return String.format("%10.3f ms  FAILED %s: %s", nanos / 1e6, input, error);
+            }
+            return String.format("%10.3f ms  %s -> %s", nanos / 1e6, input, output);
+        }
+    }
+
+    private final Driver driver;
+    private final int parallelism;
+
+    public BatchCompiler(Driver driver, int parallelism) {
+        this.driver = driver;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Expands directories to the {@code .ct} files inside them (recursively).
+     *
+     * @param paths Files and directories
+     * @return The files sorted by path with duplicates removed
+     * @throws IOException If a directory cannot be walked
+     */
+    public static List<Path> collectInputs(final List<Path> paths) throws IOException {
+        final List<Path> ret = new ArrayList<>();
+        for (final Path p : paths) {
+            if (Files.isDirectory(p)) {
+                try (final Stream<Path> s = Files.walk(p)) {
+                    s.filter(e -> e.toString().endsWith(".ct") && Files.isRegularFile(e))
+                            .forEach(ret::add);
+                }
+            } else {
+                ret.add(p);
+            }
+        }
+        return ret.stream()
+                .map(e -> e.toAbsolutePath().normalize())
+                .distinct()
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    public static Path outputFor(final Path input, final Path outputDir) {
+        String name = input.getFileName().toString();
+        if (name.endsWith(".ct")) {
+            name = name.substring(0, name.length() - 3);
+        }
+        name += ".c";
+        return outputDir == null ? input.resolveSibling(name) : outputDir.resolve(name);
+    }
+
+    /**
+     * @param inputs The files to translate
+     * @param entryPoint Name of the function called by the C main function,
+     * the same for every file
+     * @param outputDir Where the C files go, null puts them next to the inputs
+     * @return One result per input, in the same order
+     * @throws IOException If the output directory cannot be created
+     */
+    public List<Result> compile(final List<Path> inputs, final String entryPoint, final Path outputDir) throws IOException {
+        if (outputDir != null) {
+            Files.createDirectories(outputDir);
+        }
+        final Map<Path, Path> seen = new HashMap<>();
+        for (final Path input : inputs) {
+            final Path prev = seen.put(outputFor(input, outputDir), input);
+            if (prev != null) {
+                throw new IllegalArgumentException(prev + " and " + input + " would both be written to " + outputFor(input, outputDir));
+            }
+        }
+
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            final List<ForkJoinTask<Result>> tasks = new ArrayList<>();
+            for (final Path input : inputs) {
+                tasks.add(pool.submit(() -> compileOne(input, entryPoint, outputFor(input, outputDir))));
+            }
+            return tasks.stream().map(ForkJoinTask::join).collect(Collectors.toList());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private Result compileOne(final Path input, final String entryPoint, final Path output) {
+        final long start = System.nanoTime();
+        String error = null;
+        try {
+            driver.compile(input, entryPoint, output);
+        } catch (IOException ex) {
+            error = ex.getClass().getSimpleName() + ": " + ex.getMessage();
+        } catch (RuntimeException ex) {
+            error = String.valueOf(ex.getMessage());
+        }
+        return new Result(input, output, System.nanoTime() - start, error);
+    }
+
+    public static void printSummary(final List<Result> results, final long wallNanos, final PrintStream out) {
+        long total = 0;
+        int failed = 0;
+        for (final Result r : results) {
+            out.println(r);
+            total += r.nanos;
+            if (r.failed()) {
+                ++failed;
+            }
+        }
+        out.printf("%d files, %d failed, %.3f ms total per-file time, %.3f ms wall time%n",
+                   results.size(), failed, total / 1e6, wallNanos / 1e6);
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Drops lines that only consist of whitespace while the text is being
+ * written. Lines are separated by a single '\n' and no separator follows the
+ * last line, the same as joining the non-blank lines with "\n".
+ *
+ * @author YTENG
+ */
+class BlankLineFilterWriter extends FilterWriter {
+
+    // Leading whitespace of the current line, written once the line turns
+    // out to be non-blank.
+    private final StringBuilder pending = new StringBuilder();
+    private boolean lineHasText = false;
+    private boolean firstLine = true;
+
+    BlankLineFilterWriter(Writer out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (c == '\n') {
+            pending.setLength(0);
+            lineHasText = false;
+            return;
+        }
+        if (lineHasText) {
+            out.write(c);
+            return;
+        }
+        if (c <= ' ') {
+            pending.append((char) c);
+            return;
+        }
+        if (!firstLine) {
+            out.write('\n');
+        }
+        firstLine = false;
+        lineHasText = true;
+        out.append(pending).write(c);
+        pending.setLength(0);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        final int end = off + len;
+        int start = off;
+        for (int i = off; i < end; ++i) {
+            final char c = cbuf[i];
+            if (lineHasText && c != '\n') {
+                continue;
+            }
+            // Flush the run of text that belongs to a non-blank line
+            if (i > start) {
+                out.write(cbuf, start, i - start);
+            }
+            start = i + 1;
+            write(c);
+        }
+        if (lineHasText && end > start) {
+            out.write(cbuf, start, end - start);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        final char[] buf = new char[Math.min(len, 8192)];
+        for (int done = 0; done < len; done += buf.length) {
+            final int n = Math.min(buf.length, len - done);
+            str.getChars(off + done, off + done + n, buf, 0);
+            write(buf, 0, n);
+        }
+    }
+
+    /**
+     * Writes a whole section without converting it to a String first.
+     *
+     * @param sb The section
+     * @throws IOException If the underlying writer fails
+     */
+    void write(StringBuilder sb) throws IOException {
+        final char[] buf = new char[Math.min(sb.length(), 8192)];
+        for (int done = 0; done < sb.length(); done += buf.length) {
+            final int n = Math.min(buf.length, sb.length() - done);
+            sb.getChars(done, done + n, buf, 0);
+            write(buf, 0, n);
+        }
+    }
+}
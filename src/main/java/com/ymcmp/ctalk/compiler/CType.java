@@ -0,0 +1,268 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An immutable C type. Types render C declarators directly, for example a
+ * pointer to an array of three ints declaring x becomes
+ * {@code int (* x)[3]}. Primitive and named types are interned, and each
+ * type keeps the pointer type to it, so the usual types are shared.
+ *
+ * Primitive types are spelled by the grammar, so there are only so many of
+ * them, and they are compared by identity. Named types come from the
+ * sources, so their table is emptied once it holds {@link #NAMED_LIMIT}
+ * names to keep a long running compile server bounded.
+ *
+ * @author YTENG
+ */
+public abstract class CType implements Serializable {
+
+    private static final long serialVersionUID = 5613390271146L;
+
+    private static final ConcurrentMap<String, Primitive> PRIMITIVES = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Named> NAMED = new ConcurrentHashMap<>();
+
+    public static final int NAMED_LIMIT = 1 << 14;
+
+    public static final Primitive VOID = primitive("void");
+
+    private transient volatile Pointer pointer;
+
+    /**
+     * @param text The C spelling, like {@code unsigned long int}
+     * @return The interned type
+     */
+    public static Primitive primitive(final String text) {
+        return PRIMITIVES.computeIfAbsent(text, Primitive::new);
+    }
+
+    /**
+     * @param name The mangled name of a struct, union or extern type
+     * @return The interned type
+     */
+    public static Named named(final String name) {
+        final Named type = NAMED.get(name);
+        if (type != null) {
+            return type;
+        }
+        if (NAMED.size() >= NAMED_LIMIT) {
+            NAMED.clear();
+        }
+        return NAMED.computeIfAbsent(name, Named::new);
+    }
+
+    public Pointer pointer() {
+        Pointer ret = pointer;
+        if (ret == null) {
+            ret = pointer = new Pointer(this);
+        }
+        return ret;
+    }
+
+    /**
+     * Writes a declaration of this type.
+     *
+     * @param out Where the declaration goes
+     * @param declarator What is declared, empty for abstract declarators
+     */
+    public abstract void declare(StringBuilder out, String declarator);
+
+    public String declare(final String declarator) {
+        final StringBuilder sb = new StringBuilder();
+        declare(sb, declarator);
+        return sb.toString();
+    }
+
+    /**
+     * @return The type as used in casts and sizeof
+     */
+    public String abstractDeclarator() {
+        return declare("");
+    }
+
+    /**
+     * @param name The mangled name being declared
+     * @return The name the declaration actually introduces. Function
+     * pointers append their selector to it.
+     */
+    public String declaredName(final String name) {
+        return name;
+    }
+
+    /**
+     * @return The name of the type if it is a single word, like
+     * {@code int} or a mangled struct name, null otherwise. Extension
+     * function calls are looked up by it.
+     */
+    public String simpleName() {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return abstractDeclarator().trim();
+    }
+
+    public static final class Primitive extends CType {
+
+        private static final long serialVersionUID = -1820663581472L;
+
+        public final String text;
+
+        private Primitive(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public void declare(StringBuilder out, String declarator) {
+            out.append(text).append(' ').append(declarator);
+        }
+
+        @Override
+        public String simpleName() {
+            return text.indexOf(' ') < 0 ? text : null;
+        }
+    }
+
+    public static final class Named extends CType {
+
+        private static final long serialVersionUID = 2245073608124L;
+
+        public final String name;
+
+        private Named(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void declare(StringBuilder out, String declarator) {
+            out.append(name).append(' ').append(declarator);
+        }
+
+        @Override
+        public String simpleName() {
+            return name;
+        }
+    }
+
+    public static final class Pointer extends CType {
+
+        private static final long serialVersionUID = -4735125596013L;
+
+        public final CType base;
+
+        private Pointer(CType base) {
+            this.base = base;
+        }
+
+        @Override
+        public void declare(StringBuilder out, String declarator) {
+            base.declare(out, "* " + declarator);
+        }
+
+        @Override
+        public String declaredName(String name) {
+            return base.declaredName(name);
+        }
+    }
+
+    public static final class Array extends CType {
+
+        private static final long serialVersionUID = 7039582216354L;
+
+        public final CType base;
+        // Already translated, like 3][4
+        public final String bounds;
+
+        public Array(CType base, String bounds) {
+            this.base = base;
+            this.bounds = bounds;
+        }
+
+        @Override
+        public void declare(StringBuilder out, String declarator) {
+            base.declare(out, "(" + declarator + ")[" + bounds + "]");
+        }
+
+        @Override
+        public String declaredName(String name) {
+            return base.declaredName(name);
+        }
+    }
+
+    public static final class Function extends CType {
+
+        private static final long serialVersionUID = -6648120117893L;
+
+        public final CType returnType;
+        // Appended to the declarator, like _1x
+        public final String selector;
+        // Already translated, like (int _C1x)
+        public final String params;
+
+        public Function(CType returnType, String selector, String params) {
+            this.returnType = returnType;
+            this.selector = selector;
+            this.params = params;
+        }
+
+        @Override
+        public void declare(StringBuilder out, String declarator) {
+            returnType.declare(out, "(* " + declarator + selector + ")" + params);
+        }
+
+        @Override
+        public String declaredName(String name) {
+            return name + selector;
+        }
+    }
+
+    public static final class Qualified extends CType {
+
+        private static final long serialVersionUID = 3390517744286L;
+
+        public final CType base;
+        // Like " const" or " const volatile"
+        public final String qualifiers;
+
+        public Qualified(CType base, String qualifiers) {
+            this.base = base;
+            this.qualifiers = qualifiers;
+        }
+
+        @Override
+        public void declare(StringBuilder out, String declarator) {
+            base.declare(out, qualifiers + " " + declarator);
+        }
+
+        @Override
+        public String declaredName(String name) {
+            return base.declaredName(name);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps one JVM around to translate many files, so the JVM start up, the
+ * ANTLR ATN deserialization and the JIT are only paid once. Imported modules
+ * stay parsed in the module cache between requests.
+ *
+ * Requests are single lines of tab separated fields:
+ *
+ * <pre>
+ * input-file	entry-point	output-file
+ * </pre>
+ *
+ * Each request is answered by a single line, either {@code ok <output-file>}
+ * or {@code error <message>}. Relative paths are resolved against the
+ * working directory of the server, so clients should send absolute paths.
+ *
+ * Every user of the machine can connect to a loopback socket, so the first
+ * line of a socket connection must be a random token that the server writes
+ * to a file only its owner can read, see {@link #tokenFile(int)}.
+ *
+ * @author YTENG
+ */
+public class CompileServer {
+
+    public static final String OK = "ok";
+    public static final String ERROR = "error";
+
+    private final Driver driver;
+
+    public CompileServer(Driver driver) {
+        this.driver = driver;
+    }
+
+    /**
+     * Serves requests from stdin until it is closed.
+     *
+     * @throws IOException If stdin or stdout fails
+     */
+    public void serveStdin() throws IOException {
+        final BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            out.write(handle(line));
+            out.write('\n');
+            out.flush();
+        }
+    }
+
+    /**
+     * Serves requests on a loopback port until the JVM is terminated. Each
+     * connection must start with the token written to
+     * {@link #tokenFile(int)} and may then send any number of requests.
+     *
+     * @param port The port to listen on
+     * @throws IOException If the port cannot be bound or the token cannot be
+     * written
+     */
+    public void serveSocket(final int port) throws IOException {
+        final ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try (final ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            final Path tokenFile = tokenFile(server.getLocalPort());
+            final byte[] token = writeToken(tokenFile);
+            System.err.println("ctalk server listening on " + server.getLocalSocketAddress() + ", token in " + tokenFile);
+            while (true) {
+                final Socket client = server.accept();
+                pool.execute(() -> serveClient(client, token));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void serveClient(final Socket client, final byte[] token) {
+        try (final Socket s = client;
+                final BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                final Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            final String auth = in.readLine();
+            if (auth == null || !MessageDigest.isEqual(token, auth.getBytes(StandardCharsets.UTF_8))) {
+                out.write(ERROR + " unauthorized\n");
+                out.flush();
+                return;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                out.write(handle(line));
+                out.write('\n');
+                out.flush();
+            }
+        } catch (IOException ex) {
+            System.err.println("ctalk server: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @param port The port the server listens on
+     * @return The file holding the token of the server on that port
+     */
+    public static Path tokenFile(final int port) {
+        return Paths.get(System.getProperty("user.home"), ".ctalk", "server-" + port + ".token");
+    }
+
+    private static byte[] writeToken(final Path file) throws IOException {
+        final byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        final StringBuilder sb = new StringBuilder();
+        for (final byte b : random) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        final byte[] token = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        final Path dir = file.getParent();
+        final boolean posix = dir.getFileSystem().supportedFileAttributeViews().contains("posix");
+        if (posix) {
+            if (!Files.isDirectory(dir)) {
+                Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            }
+            // A stale file may have been readable by others; never reuse it
+            Files.deleteIfExists(file);
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createDirectories(dir);
+            Files.deleteIfExists(file);
+            Files.createFile(file);
+        }
+        Files.write(file, token);
+        return token;
+    }
+
+    /**
+     * Processes one request line.
+     *
+     * @param line The request
+     * @return The response line without the line terminator
+     */
+    public String handle(final String line) {
+        final String[] fields = line.split("\t");
+        if (fields.length != 3) {
+            return ERROR + " expected input-file, entry-point and output-file separated by tabs";
+        }
+        final Path output = Paths.get(fields[2]);
+        try {
+            driver.compile(Paths.get(fields[0]), fields[1], output);
+            return OK + " " + output;
+        } catch (IOException ex) {
+            return ERROR + " " + (ex.getClass().getSimpleName() + ": " + ex.getMessage()).replace('\n', ' ');
+        } catch (RuntimeException ex) {
+            return ERROR + " " + String.valueOf(ex.getMessage()).replace('\n', ' ');
+        }
+    }
+
+    /**
+     * Forwards a single request to a running server, authenticating with
+     * the token in {@link #tokenFile(int)}.
+     *
+     * @param port The port the server listens on
+     * @param input The file containing the entry point
+     * @param entryPoint Name of the function called by the C main function
+     * @param output The C file
+     * @return The response of the server
+     * @throws IOException If the server cannot be reached or the token
+     * cannot be read
+     */
+    public static String forward(final int port, final Path input, final String entryPoint, final Path output) throws IOException {
+        final String token = new String(Files.readAllBytes(tokenFile(port)), StandardCharsets.UTF_8).trim();
+        try (final Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+                final BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                final Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            out.write(token + "\n");
+            out.write(input.toAbsolutePath() + "\t" + entryPoint + "\t" + output.toAbsolutePath() + "\n");
+            out.flush();
+            final String response = in.readLine();
+            if (response == null) {
+                throw new IOException("Server closed the connection without answering");
+            }
+            return response;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects how long each phase of a translation took along with a few
+ * counters, one instance per translated file. Phases nest (imports happen
+ * inside GEN_SYM and GEN_CODE, imports of imports inside those), the report
+ * keeps that nesting and every time includes the phases nested in it.
+ *
+ * Every phase is also emitted as a JFR event, even by {@link #DISABLED},
+ * whenever the JVM supports it and the event class was built.
+ *
+ * @author YTENG
+ */
+public final class CompileStats {
+
+    public static final CompileStats DISABLED = new CompileStats(false);
+
+    /**
+     * Emits the phases as JFR events. Implemented next to
+     * {@code CompilePhaseEvent}, which is built separately as it needs
+     * jdk.jfr.
+     */
+    interface EventSink {
+
+        Object begin(String phase, String module);
+
+        void end(Object event);
+    }
+
+    // null without jdk.jfr (before Java 8u262) or without the event class
+    private static final EventSink EVENTS = loadEventSink();
+
+    private static final class Row {
+
+        final String phase;
+        final String module;
+        final int depth;
+        long nanos;
+        long tokens = -1;
+        long nodes = -1;
+
+        Row(String phase, String module, int depth) {
+            this.phase = phase;
+            this.module = module;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * A phase being timed, closing it records the time.
+     */
+    public final class Span implements AutoCloseable {
+
+        private final Row row;
+        private final Object event;
+        private final long start;
+
+        private Span(Row row, Object event) {
+            this.row = row;
+            this.event = event;
+            this.start = System.nanoTime();
+        }
+
+        public void setTokens(final long tokens) {
+            if (row != null) {
+                row.tokens = tokens;
+            }
+        }
+
+        /**
+         * Counts the nodes of a parse tree, which is only done if the stats
+         * are enabled.
+         *
+         * @param tree The parse tree the phase worked on
+         */
+        public void countTree(final ParserRuleContext tree) {
+            if (row != null) {
+                row.tokens = tokenCount(tree);
+                row.nodes = nodeCount(tree);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (row != null) {
+                row.nanos = System.nanoTime() - start;
+                --depth;
+            }
+            if (event != null) {
+                EVENTS.end(event);
+            }
+        }
+    }
+
+    private final boolean enabled;
+    private final List<Row> rows = new ArrayList<>();
+    private int depth = 0;
+    private long symbols = -1;
+    private long outputChars = -1;
+    private long peakHeap = -1;
+    private long cacheHits = -1;
+    private long cacheMisses = -1;
+    private long liveDefinitions = -1;
+    private long translatedDefinitions = -1;
+    private long totalDefinitions = -1;
+
+    public CompileStats() {
+        this(true);
+    }
+
+    private CompileStats(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param phase Name of the phase
+     * @param module Qualified name of the module, null if the phase is not
+     * about an imported module
+     * @return The span to close once the phase is over
+     */
+    public Span begin(final String phase, final String module) {
+        final Object event = EVENTS != null ? EVENTS.begin(phase, module) : null;
+        if (!enabled) {
+            return new Span(null, event);
+        }
+        final Row row = new Row(phase, module, depth++);
+        rows.add(row);
+        return new Span(row, event);
+    }
+
+    /**
+     * @param phase Name of the phase
+     * @return The time spent in the outermost phases of that name, -1 if
+     * the stats are disabled
+     */
+    public long nanos(final String phase) {
+        if (!enabled) {
+            return -1;
+        }
+        long sum = 0;
+        for (final Row row : rows) {
+            if (row.depth == 0 && row.phase.equals(phase)) {
+                sum += row.nanos;
+            }
+        }
+        return sum;
+    }
+
+    public void setSymbols(final long symbols) {
+        this.symbols = symbols;
+    }
+
+    public void setOutputChars(final long outputChars) {
+        this.outputChars = outputChars;
+    }
+
+    /**
+     * @param live Definitions reachable from the entry point
+     * @param translated Definitions whose body was translated
+     * @param total Every definition, imported ones included
+     */
+    public void setDefinitions(final long live, final long translated, final long total) {
+        this.liveDefinitions = live;
+        this.translatedDefinitions = translated;
+        this.totalDefinitions = total;
+    }
+
+    public void setModuleCache(final long hits, final long misses) {
+        this.cacheHits = hits;
+        this.cacheMisses = misses;
+    }
+
+    /**
+     * Resets the peak usage of the heap pools, called before the
+     * translation starts.
+     */
+    public void resetPeakHeap() {
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Records the sum of the peak usage of each heap pool since the last
+     * {@link #resetPeakHeap()}. The pools peak at different times, so this
+     * is an upper bound. It is also JVM wide, files translated in parallel
+     * share it.
+     */
+    public void recordPeakHeap() {
+        long sum = 0;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                sum += pool.getPeakUsage().getUsed();
+            }
+        }
+        this.peakHeap = sum;
+    }
+
+    private static EventSink loadEventSink() {
+        final ClassLoader loader = CompileStats.class.getClassLoader();
+        try {
+            Class.forName("jdk.jfr.Event", false, loader);
+            return (EventSink) Class.forName("com.ymcmp.ctalk.compiler.CompilePhaseEvent$Sink", true, loader)
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+    }
+
+    static long tokenCount(final ParserRuleContext tree) {
+        final Token stop = tree.getStop();
+        return stop == null ? 0 : stop.getTokenIndex() + 1;
+    }
+
+    static long nodeCount(final ParseTree tree) {
+        long count = 1;
+        for (int i = 0; i < tree.getChildCount(); ++i) {
+            count += nodeCount(tree.getChild(i));
+        }
+        return count;
+    }
+
+    /**
+     * @param title What was translated
+     * @return The report, meant for humans
+     */
+    public String report(final String title) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("stats for ").append(title).append(System.lineSeparator());
+        for (final Row row : rows) {
+            final StringBuilder name = new StringBuilder();
+            for (int i = 0; i <= row.depth; ++i) {
+                name.append("  ");
+            }
+            name.append(row.phase);
+            if (row.module != null) {
+                name.append(' ').append(row.module);
+            }
+            sb.append(String.format("%-40s %10.3f ms", name, row.nanos / 1e6));
+            if (row.tokens >= 0) {
+                sb.append(String.format("  %d tokens", row.tokens));
+            }
+            if (row.nodes >= 0) {
+                sb.append(String.format("  %d nodes", row.nodes));
+            }
+            sb.append(System.lineSeparator());
+        }
+        if (symbols >= 0) {
+            sb.append(String.format("  symbols       %d%n", symbols));
+        }
+        if (totalDefinitions >= 0) {
+            sb.append(String.format("  definitions   %d kept, %d translated, %d total%n",
+                                    liveDefinitions, translatedDefinitions, totalDefinitions));
+        }
+        if (outputChars >= 0) {
+            sb.append(String.format("  output        %d chars%n", outputChars));
+        }
+        if (peakHeap >= 0) {
+            sb.append(String.format("  peak heap     %.1f MB%n", peakHeap / (1024.0 * 1024.0)));
+        }
+        if (cacheHits >= 0) {
+            sb.append(String.format("  module cache  %d hits, %d misses%n", cacheHits, cacheMisses));
+        }
+        return sb.toString();
+    }
+}
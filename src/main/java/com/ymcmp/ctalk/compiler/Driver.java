@@ -0,0 +1,234 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import org.antlr.v4.runtime.CharStreams;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Translates one CTalk file to C with a fixed set of options. A driver can
+ * be reused for any number of files; imported modules stay cached between
+ * them.
+ *
+ * @author YTENG
+ */
+public class Driver {
+
+    private final ProgramParser parser;
+    private final ModuleCache moduleCache;
+    private final Path interfaceDir;
+    private boolean incremental = false;
+    private PrintStream statsOutput = null;
+    private boolean deadCodeElimination = false;
+    private boolean keepExported = false;
+    private boolean autoInline = false;
+
+    public Driver(ProgramParser parser, ModuleCache moduleCache, Path interfaceDir) {
+        this.parser = parser;
+        this.moduleCache = moduleCache;
+        this.interfaceDir = interfaceDir;
+    }
+
+    public ProgramParser getParser() {
+        return parser;
+    }
+
+    public ModuleCache getModuleCache() {
+        return moduleCache;
+    }
+
+    /**
+     * @param incremental Treat the input file like an imported module so it
+     * is only translated again when it or the interface of one of its
+     * imports changed. Requires an interface directory.
+     */
+    public void setIncremental(final boolean incremental) {
+        if (incremental && interfaceDir == null) {
+            throw new IllegalStateException("Incremental translation requires an interface directory");
+        }
+        this.incremental = incremental;
+    }
+
+    /**
+     * @param autoInline Make hidden single statement functions inline
+     */
+    public void setAutoInline(final boolean autoInline) {
+        this.autoInline = autoInline;
+    }
+
+    /**
+     * @param enabled Only write the definitions reachable from the entry
+     * point. Does not work with an interface directory.
+     * @param keepExported Also keep exported definitions
+     */
+    public void setDeadCodeElimination(final boolean enabled, final boolean keepExported) {
+        if (enabled && interfaceDir != null) {
+            throw new IllegalStateException("Dead code elimination does not work with interface files");
+        }
+        this.deadCodeElimination = enabled;
+        this.keepExported = keepExported;
+    }
+
+    /**
+     * @param statsOutput Where a {@link CompileStats} report of every file is
+     * printed, null disables the stats
+     */
+    public void setStatsOutput(final PrintStream statsOutput) {
+        this.statsOutput = statsOutput;
+    }
+
+    /**
+     * @param input The file containing the entry point
+     * @param entryPoint Name of the function called by the C main function
+     * @param out Where the C code goes. It is flushed but not closed.
+     * @throws IOException If reading or writing fails
+     */
+    public void compile(final Path input, final String entryPoint, final Writer out) throws IOException {
+        if (statsOutput == null) {
+            compile(input, entryPoint, out, CompileStats.DISABLED);
+            return;
+        }
+
+        final CompileStats stats = new CompileStats();
+        final CountingWriter counter = new CountingWriter(out);
+        final long hits = moduleCache.hits();
+        final long misses = moduleCache.misses();
+        stats.resetPeakHeap();
+        compile(input, entryPoint, counter, stats);
+        stats.recordPeakHeap();
+        stats.setOutputChars(counter.count);
+        stats.setModuleCache(moduleCache.hits() - hits, moduleCache.misses() - misses);
+        statsOutput.print(stats.report(input.toString()));
+    }
+
+    private Translator newTranslator(final Path input, final CompileStats stats) {
+        final Translator translator = new Translator(input.toUri(), moduleCache);
+        translator.setProgramParser(parser);
+        translator.setInterfaceDirectory(interfaceDir);
+        translator.setStats(stats);
+        translator.setDeadCodeElimination(deadCodeElimination, keepExported);
+        translator.setAutoInline(autoInline);
+        return translator;
+    }
+
+    private void compile(final Path input, final String entryPoint, final Writer out, final CompileStats stats) throws IOException {
+        final Translator translator = newTranslator(input, stats);
+        if (incremental) {
+            translator.generateIncremental(entryPoint, out);
+        } else {
+            translator.generate(parser.parse(CharStreams.fromPath(input), stats), entryPoint, out);
+        }
+        out.write(System.lineSeparator());
+        out.flush();
+    }
+
+    private static final class CountingWriter extends FilterWriter {
+
+        long count = 0;
+
+        CountingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            out.write(c);
+            ++count;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Translates every module into its own C file and header, see
+     * {@link Translator#generateSeparate}. Requires an interface directory.
+     *
+     * @param input The file containing the entry point
+     * @param entryPoint Name of the function called by the C main function
+     * @param outputDir Where the C files and headers go
+     * @return The link manifest listing the object of every module
+     * @throws IOException If reading or writing fails
+     */
+    public Path compileSeparate(final Path input, final String entryPoint, final Path outputDir) throws IOException {
+        if (interfaceDir == null) {
+            throw new IllegalStateException("Separate compilation requires an interface directory");
+        }
+        final CompileStats stats = statsOutput == null ? CompileStats.DISABLED : new CompileStats();
+        final Path manifest = newTranslator(input, stats).generateSeparate(entryPoint, outputDir);
+        if (statsOutput != null) {
+            statsOutput.print(stats.report(input.toString()));
+        }
+        return manifest;
+    }
+
+    /**
+     * Same as {@link #compile(Path, String, Writer)} but writes to a file.
+     * The C code goes to a temporary file next to the output that replaces
+     * it once the translation succeeded, so an existing output is never
+     * truncated or deleted by a failed translation.
+     *
+     * @param input The file containing the entry point
+     * @param entryPoint Name of the function called by the C main function
+     * @param output The C file
+     * @throws IOException If reading or writing fails
+     */
+    public void compile(final Path input, final String entryPoint, final Path output) throws IOException {
+        final Path dir = output.toAbsolutePath().getParent();
+        final Path temp = Files.createTempFile(dir, output.getFileName().toString(), ".tmp");
+        boolean done = false;
+        try {
+            try (final Writer out = Files.newBufferedWriter(temp)) {
+                compile(input, entryPoint, out);
+            }
+            try {
+                Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local variables of nested scopes. Lookups are hashed by name and return
+ * the latest declaration of the innermost scope declaring it, so inner
+ * declarations shadow outer ones until their scope is popped.
+ *
+ * @author YTENG
+ */
+final class LocalScopes {
+
+    private final Map<String, Deque<LocalVar>> byName = new HashMap<>();
+    private final Deque<List<String>> scopes = new ArrayDeque<>();
+
+    public void push() {
+        scopes.push(new ArrayList<>());
+    }
+
+    public void pop() {
+        for (final String name : scopes.pop()) {
+            final Deque<LocalVar> vars = byName.get(name);
+            vars.pop();
+            if (vars.isEmpty()) {
+                byName.remove(name);
+            }
+        }
+    }
+
+    public void declare(final LocalVar var) {
+        scopes.peek().add(var.name);
+        byName.computeIfAbsent(var.name, k -> new ArrayDeque<>()).push(var);
+    }
+
+    /**
+     * @param name The mangled name
+     * @return The visible variable, null if there is none
+     */
+    public LocalVar lookup(final String name) {
+        final Deque<LocalVar> vars = byName.get(name);
+        return vars == null ? null : vars.peek();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("scopes=%d,names=%s", scopes.size(), byName.keySet());
+    }
+}
@@ -35,11 +35,11 @@ public class LocalVar implements Serializable {
     private static final long serialVersionUID = -6123978193586L;
 
     public final String name;
-    public final String type;
+    public final CType type;
 
-    public LocalVar(String name, String type) {
+    public LocalVar(String name, CType type) {
         this.name = name;
-        this.type = type.trim();
+        this.type = type;
     }
 
     @Override
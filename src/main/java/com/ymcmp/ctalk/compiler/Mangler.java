@@ -0,0 +1,162 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Hands out the mangled forms of names. Every form is built once and then
+ * shared, so translating the same names over and over (every reference,
+ * both passes, every file of a batch) does not allocate new strings.
+ *
+ * <pre>
+ * part        io       => 2io
+ * selector    str      => _3str
+ * local       x        => _C1x
+ * namespace   std::io  => _C3std2io
+ * hierachy    std::io  => std/io
+ * </pre>
+ *
+ * A table is emptied once it holds {@link #LIMIT} names, so a compile
+ * server translating many different programs does not keep every name it
+ * has ever seen. Emptying it only costs building the forms again.
+ *
+ * @author YTENG
+ */
+public final class Mangler {
+
+    public static final int LIMIT = 1 << 16;
+
+    private static final Mangler SHARED = new Mangler();
+
+    private final ConcurrentMap<String, String> parts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> selectors = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> locals = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> namespaces = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> hierachies = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> externals = new ConcurrentHashMap<>();
+
+    public static Mangler shared() {
+        return SHARED;
+    }
+
+    public String part(final String name) {
+        return intern(parts, name, k -> k.length() + k);
+    }
+
+    public String selector(final String name) {
+        return intern(selectors, name, k -> '_' + part(k));
+    }
+
+    public String local(final String name) {
+        return intern(locals, name, k -> "_C" + part(k));
+    }
+
+    /**
+     * @param text A namespace without {@code _}, like {@code std::io}
+     * @return The mangled form, like {@code _C3std2io}
+     */
+    public String namespace(final String text) {
+        return intern(namespaces, text, k -> {
+            final StringBuilder sb = new StringBuilder("_C");
+            int start = 0;
+            int end;
+            while ((end = k.indexOf("::", start)) >= 0) {
+                sb.append(part(k.substring(start, end)));
+                start = end + 2;
+            }
+            return sb.append(part(k.substring(start))).toString();
+        });
+    }
+
+    public String hierachy(final String text) {
+        return intern(hierachies, text, k -> k.replace("::", "/"));
+    }
+
+    /**
+     * @param qualId A mangled name, like {@code _C3std2io7println_3str}
+     * @return The name as written in CTalk, like
+     * {@code std::io::println:str}
+     */
+    public String externalName(final String qualId) {
+        return intern(externals, qualId, Mangler::demangle);
+    }
+
+    private static String intern(final ConcurrentMap<String, String> table, final String key,
+                                 final Function<String, String> mangle) {
+        final String value = table.get(key);
+        if (value != null) {
+            return value;
+        }
+        if (table.size() >= LIMIT) {
+            table.clear();
+        }
+        return table.computeIfAbsent(key, mangle);
+    }
+
+    private static String demangle(final String qualId) {
+        if (qualId.startsWith("_T")) {
+            return qualId.substring(2);
+        }
+        if (!qualId.startsWith("_C")) {
+            return qualId;
+        }
+        final int len = qualId.length();
+        final StringBuilder sb = new StringBuilder(len);
+        int idx = 2;
+        while (idx < len && Character.isDigit(qualId.charAt(idx))) {
+            int extLen = 0;
+            while (idx < len && Character.isDigit(qualId.charAt(idx))) {
+                extLen = extLen * 10 + Character.digit(qualId.charAt(idx), 10);
+                ++idx;
+            }
+            sb.append(qualId, idx, idx + extLen).append("::");
+            idx += extLen;
+        }
+        sb.setLength(sb.length() - 2);
+
+        while (idx < len && qualId.charAt(idx) == '_') {
+            ++idx;
+            if (qualId.charAt(idx) == 'v') {
+                sb.append("()");
+                break;
+            }
+            int extLen = 0;
+            while (idx < len && Character.isDigit(qualId.charAt(idx))) {
+                extLen = extLen * 10 + Character.digit(qualId.charAt(idx), 10);
+                ++idx;
+            }
+            sb.append(':').append(qualId, idx, idx + extLen);
+            idx += extLen;
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("parts=%d,namespaces=%d,externals=%d", parts.size(), namespaces.size(), externals.size());
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import org.antlr.v4.runtime.CharStreams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the parse trees of imported modules around so they are only lexed
+ * and parsed once per JVM. Entries are keyed by the resolved URI of the
+ * module. Modules on the file system are validated by modification time and
+ * size, everything else (such as the standard library inside the jar) by a
+ * checksum of its content.
+ *
+ * The cache holds a limited number of modules and drops the least recently
+ * used one beyond that, so a compile server that translates many different
+ * programs does not keep every module it has ever seen.
+ *
+ * @author YTENG
+ */
+public final class ModuleCache {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final ModuleCache SHARED = new ModuleCache();
+
+    private static final class Entry {
+
+        final long stamp;
+        final long size;
+        final GrammarParser.ProgramContext tree;
+
+        Entry(long stamp, long size, GrammarParser.ProgramContext tree) {
+            this.stamp = stamp;
+            this.size = size;
+            this.tree = tree;
+        }
+    }
+
+    private static final class Lru extends LinkedHashMap<URI, Entry> {
+
+        private static final long serialVersionUID = -6180441873229L;
+
+        private final int capacity;
+
+        Lru(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<URI, ModuleCache.Entry> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    // Only the map operations are locked, reading and parsing are not
+    private final Lru entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ModuleCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The most modules kept at once
+     */
+    public ModuleCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Illegal module cache capacity " + capacity);
+        }
+        this.entries = new Lru(capacity);
+    }
+
+    public static ModuleCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the parse tree of a module, parsing it only if it is not cached
+     * or if the module changed since it was cached.
+     *
+     * @param uri The resolved location of the module
+     * @param parser Used when the module needs to be parsed
+     * @return The parse tree
+     * @throws IOException If the module cannot be read
+     */
+    public GrammarParser.ProgramContext get(final URI uri, final ProgramParser parser) throws IOException {
+        final Entry old;
+        synchronized (entries) {
+            old = entries.get(uri);
+        }
+        final Path path = toPath(uri);
+        if (path != null) {
+            final long stamp = Files.getLastModifiedTime(path).toMillis();
+            final long size = Files.size(path);
+            if (old != null && old.stamp == stamp && old.size == size) {
+                hits.incrementAndGet();
+                return old.tree;
+            }
+            misses.incrementAndGet();
+            final byte[] content = Files.readAllBytes(path);
+            final Entry entry = new Entry(stamp, size, parse(parser, content));
+            put(uri, entry);
+            return entry.tree;
+        }
+
+        final byte[] content = readAll(uri);
+        final long checksum = checksum(content);
+        if (old != null && old.stamp == checksum && old.size == content.length) {
+            hits.incrementAndGet();
+            return old.tree;
+        }
+        misses.incrementAndGet();
+        final Entry entry = new Entry(checksum, content.length, parse(parser, content));
+        put(uri, entry);
+        return entry.tree;
+    }
+
+    private void put(final URI uri, final Entry entry) {
+        synchronized (entries) {
+            entries.put(uri, entry);
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("modules=%d,hits=%d,misses=%d", size(), hits(), misses());
+    }
+
+    private static GrammarParser.ProgramContext parse(final ProgramParser parser, final byte[] content) {
+        return parser.parse(CharStreams.fromString(new String(content, StandardCharsets.UTF_8)));
+    }
+
+    private static Path toPath(final URI uri) {
+        if (!"file".equals(uri.getScheme())) {
+            return null;
+        }
+        return Paths.get(uri);
+    }
+
+    static byte[] readAll(final URI uri) throws IOException {
+        try (final InputStream in = uri.toURL().openStream()) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                out.write(buf, 0, len);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    static long checksum(final byte[] content) {
+        final CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.wrap(content));
+        return crc.getValue();
+    }
+}
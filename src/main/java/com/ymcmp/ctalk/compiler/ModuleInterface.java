@@ -0,0 +1,283 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The translated form of a single imported module, persisted as a
+ * {@code .cti} file. It only holds what the module itself contributes;
+ * the modules it imports are listed in {@link #deps} and are replayed
+ * before it.
+ *
+ * Importers depend on the {@link #interfaceHash} of a module, which only
+ * covers what other modules can see. Changing the body of a function
+ * rebuilds the module's own interface file but none of its importers.
+ *
+ * @author YTENG
+ */
+public class ModuleInterface implements Serializable {
+
+    private static final long serialVersionUID = 8817260311574L;
+
+    /**
+     * Bumped whenever the layout of the interface or the generated code
+     * changes so old {@code .cti} files are rebuilt.
+     */
+    public static final int FORMAT = 8;
+
+    public static final String EXTENSION = ".cti";
+
+    // Interface files may sit in a shared directory, nothing else is read
+    private static final Set<String> ALLOWED_CLASSES = new HashSet<>(Arrays.asList(
+            ModuleInterface.class.getName(),
+            Dependency.class.getName(),
+            NsInfo.class.getName(),
+            NsInfo.Visibility.class.getName(),
+            Enum.class.getName(),
+            String.class.getName(),
+            URI.class.getName(),
+            ArrayList.class.getName(),
+            HashMap.class.getName()));
+
+    private static final class FilteredInputStream extends ObjectInputStream {
+
+        FilteredInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            if (!ALLOWED_CLASSES.contains(desc.getName())) {
+                throw new InvalidClassException(desc.getName(), "Not allowed in an interface file");
+            }
+            return super.resolveClass(desc);
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(final String[] interfaces) throws IOException {
+            throw new InvalidClassException("Proxies are not allowed in an interface file");
+        }
+    }
+
+    public static class Dependency implements Serializable {
+
+        private static final long serialVersionUID = -2208317790461L;
+
+        public final String qualId;
+        public final URI source;
+        public final long interfaceHash;
+
+        public Dependency(String qualId, URI source, long interfaceHash) {
+            this.qualId = qualId;
+            this.source = source;
+            this.interfaceHash = interfaceHash;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s=%s", qualId, source);
+        }
+    }
+
+    public final int format;
+    public final String qualId;
+    public final URI source;
+    public final long sourceChecksum;
+
+    public final List<Dependency> deps = new ArrayList<>();
+    public final Map<String, NsInfo> symbols = new HashMap<>();
+
+    public String includes = "";
+    public String typedefs = "";
+    public String macros = "";
+    public String prototypes = "";
+    // Definitions of inline functions, importers need to see them
+    public String inlines = "";
+    public String body = "";
+
+    public long interfaceHash;
+
+    public ModuleInterface(String qualId, URI source, long sourceChecksum) {
+        this.format = FORMAT;
+        this.qualId = qualId;
+        this.source = source;
+        this.sourceChecksum = sourceChecksum;
+    }
+
+    /**
+     * Computes {@link #interfaceHash} from the symbols, includes, typedefs,
+     * macros, prototypes and the interface hashes of the dependencies. The
+     * body is deliberately left out.
+     */
+    public void updateInterfaceHash() {
+        final StringBuilder sb = new StringBuilder();
+        for (final Dependency dep : deps) {
+            sb.append(dep.qualId).append('=').append(dep.interfaceHash).append('\n');
+        }
+        symbols.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey())
+                .forEach(e -> sb.append(e.getKey()).append(' ')
+                        .append(e.getValue().visibility).append(' ')
+                        .append(e.getValue().name).append(' ')
+                        .append(e.getValue().hierachy).append('\n'));
+        sb.append(includes).append('\0')
+                .append(typedefs).append('\0')
+                .append(macros).append('\0')
+                .append(prototypes).append('\0')
+                .append(inlines);
+        interfaceHash = ModuleCache.checksum(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static Path pathFor(final Path dir, final String qualId, final URI source) {
+        return dir.resolve(stemFor(qualId, source) + EXTENSION);
+    }
+
+    /**
+     * @return The file name, without extension, of everything generated for
+     * a module. Sources are told apart by the first 128 bits of the SHA-256
+     * of their URI.
+     */
+    public static String stemFor(final String qualId, final URI source) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(source.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform has to support SHA-256
+            throw new AssertionError(ex);
+        }
+        final StringBuilder sb = new StringBuilder(qualId).append('-');
+        for (int i = 0; i < 16; ++i) {
+            sb.append(String.format("%02x", digest[i] & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    public String stem() {
+        return stemFor(qualId, source);
+    }
+
+    /**
+     * Builds the C header of the module for separate compilation. It holds
+     * everything other modules can see: includes, typedefs, macros, the
+     * extern prototypes and the inline functions, after the headers of the
+     * imported modules. Exported inline functions are only declared inline
+     * here, the C file of the module provides their external definitions.
+     * Hidden inline functions are static and stay in the C file.
+     *
+     * @return The header
+     */
+    public String header() {
+        final String guard = "CTALK_" + stem().toUpperCase().replace('-', '_') + "_H";
+        final StringBuilder sb = new StringBuilder();
+        sb.append("#ifndef ").append(guard).append('\n')
+                .append("#define ").append(guard).append('\n')
+                .append("#include <stdbool.h>\n#include <stddef.h>\n");
+        for (final Dependency dep : deps) {
+            sb.append("#include \"").append(stemFor(dep.qualId, dep.source)).append(".h\"\n");
+        }
+        sb.append(includes)
+                .append(typedefs)
+                .append(macros);
+        for (final String line : prototypes.split("\n")) {
+            if (line.startsWith("extern inline ")) {
+                sb.append(line.substring("extern ".length())).append('\n');
+            } else if (!line.startsWith("static")) {
+                sb.append(line).append('\n');
+            }
+        }
+        return sb.append(inlines)
+                .append("#endif\n").toString();
+    }
+
+    /**
+     * Builds the C file of the module for separate compilation. Hidden
+     * prototypes stay here since no other module may refer to them, the
+     * extern inline declarations make this file emit the out-of-line
+     * definitions of exported inline functions.
+     *
+     * @param entry Code appended after the body, like the C main function
+     * @return The C code
+     */
+    public String source(final String entry) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("#include \"").append(stem()).append(".h\"\n");
+        for (final String line : prototypes.split("\n")) {
+            if (line.startsWith("static") || line.startsWith("extern inline ")) {
+                sb.append(line).append('\n');
+            }
+        }
+        return sb.append(body).append('\n')
+                .append(entry).append('\n')
+                .toString();
+    }
+
+    public static ModuleInterface read(final Path file) throws IOException {
+        try (final ObjectInputStream in = new FilteredInputStream(new GZIPInputStream(Files.newInputStream(file)))) {
+            return (ModuleInterface) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException ex) {
+            throw new IOException("Malformed interface file " + file, ex);
+        }
+    }
+
+    public void write(final Path file) throws IOException {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(buf))) {
+            out.writeObject(this);
+        }
+        Files.createDirectories(file.getParent());
+        // Write then move so concurrent readers never see a partial file
+        final Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        Files.write(tmp, buf.toByteArray());
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s(%s),deps=%s", qualId, source, deps);
+    }
+}
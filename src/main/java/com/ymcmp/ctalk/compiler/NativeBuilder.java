@@ -0,0 +1,331 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles generated C files with a C compiler found on the system and links
+ * them into an executable. Objects are kept in a cache keyed by a hash of the
+ * C file, the local headers it includes, the flags and the compiler version,
+ * so units that did not change are never compiled again, not even for a
+ * different program.
+ *
+ * @author YTENG
+ */
+public class NativeBuilder {
+
+    public static class Report {
+
+        public final int units;
+        public final int hits;
+        public final long compileNanos;
+        public final long linkNanos;
+
+        public Report(int units, int hits, long compileNanos, long linkNanos) {
+            this.units = units;
+            this.hits = hits;
+            this.compileNanos = compileNanos;
+            this.linkNanos = linkNanos;
+        }
+
+        public double hitRate() {
+            return units == 0 ? 0 : 100.0 * hits / units;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("native build: %d units, %d cached, %d compiled (%.1f%% hit rate), %.3f ms compiling, %.3f ms linking",
+                                 units, hits, units - hits, hitRate(), compileNanos / 1e6, linkNanos / 1e6);
+        }
+    }
+
+    private static final Pattern LOCAL_INCLUDE = Pattern.compile("^\\s*#\\s*include\\s*\"([^\"]+)\"", Pattern.MULTILINE);
+
+    private final String compiler;
+    private final List<String> flags;
+    private final int jobs;
+    private final Path cacheDir;
+    private String version = null;
+
+    /**
+     * @param compiler The C compiler, as found by {@link #findCompiler()}
+     * @param flags Passed to the compiler when compiling and when linking
+     * @param jobs Number of units compiled in parallel
+     * @param cacheDir Where the objects are cached
+     */
+    public NativeBuilder(String compiler, List<String> flags, int jobs, Path cacheDir) {
+        this.compiler = compiler;
+        this.flags = new ArrayList<>(flags);
+        this.jobs = jobs;
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * @return The compiler named by the CC environment variable, otherwise
+     * the first of gcc, clang and cc on the PATH, null if there is none
+     */
+    public static String findCompiler() {
+        final String cc = System.getenv("CC");
+        if (cc != null && !cc.trim().isEmpty()) {
+            return cc.trim();
+        }
+        final String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+        for (final String name : new String[]{"gcc", "clang", "cc"}) {
+            for (final String dir : path.split(File.pathSeparator)) {
+                if (dir.isEmpty()) {
+                    continue;
+                }
+                final Path candidate = Paths.get(dir, name);
+                if (Files.isRegularFile(candidate) && Files.isExecutable(candidate)) {
+                    return candidate.toString();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a link manifest written by {@link Translator#generateSeparate}.
+     *
+     * @param manifest The manifest
+     * @return The C file of every object listed, in the same order
+     * @throws IOException If the manifest cannot be read
+     */
+    public static List<Path> readManifest(final Path manifest) throws IOException {
+        final Path dir = manifest.toAbsolutePath().getParent();
+        final List<Path> sources = new ArrayList<>();
+        for (final String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            final String object = line.trim();
+            if (object.isEmpty() || object.startsWith("#")) {
+                continue;
+            }
+            sources.add(dir.resolve(object.substring(0, object.length() - 2) + ".c"));
+        }
+        return sources;
+    }
+
+    /**
+     * Compiles every C file that is not cached yet, then links all of them.
+     * Each object ends up next to its C file.
+     *
+     * @param sources The C files
+     * @param executable The program to link
+     * @return How many units came from the cache and where the time went
+     * @throws IOException If the compiler fails or cannot be run
+     */
+    public Report build(final List<Path> sources, final Path executable) throws IOException {
+        Files.createDirectories(cacheDir);
+        final long start = System.nanoTime();
+        final List<Path> objects = new ArrayList<>();
+        int hits = 0;
+        final ExecutorService pool = Executors.newFixedThreadPool(jobs);
+        try {
+            final List<Future<Boolean>> tasks = new ArrayList<>();
+            for (final Path source : sources) {
+                final Path object = objectFor(source);
+                objects.add(object);
+                tasks.add(pool.submit(() -> compile(source, object)));
+            }
+            for (final Future<Boolean> task : tasks) {
+                if (task.get()) {
+                    ++hits;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compiling", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        final long compiled = System.nanoTime();
+
+        final List<String> cmd = new ArrayList<>();
+        cmd.add(compiler);
+        for (final Path object : objects) {
+            cmd.add(object.toString());
+        }
+        cmd.add("-o");
+        cmd.add(executable.toString());
+        // Libraries have to come after the objects
+        cmd.addAll(flags);
+        System.err.print(run(cmd));
+        return new Report(sources.size(), hits, compiled - start, System.nanoTime() - compiled);
+    }
+
+    private static Path objectFor(final Path source) {
+        final String name = source.getFileName().toString();
+        final String stem = name.endsWith(".c") ? name.substring(0, name.length() - 2) : name;
+        return source.resolveSibling(stem + ".o");
+    }
+
+    /**
+     * Warnings of the compiler are printed to stderr, also when the object
+     * comes from the cache.
+     *
+     * @return True if the object came from the cache
+     */
+    private boolean compile(final Path source, final Path object) throws IOException {
+        final String key = key(source);
+        final Path cached = cacheDir.resolve(key + ".o");
+        final Path log = cacheDir.resolve(key + ".log");
+        if (Files.isRegularFile(cached)) {
+            Files.copy(cached, object, StandardCopyOption.REPLACE_EXISTING);
+            if (Files.isRegularFile(log)) {
+                System.err.print(new String(Files.readAllBytes(log), StandardCharsets.UTF_8));
+            }
+            return true;
+        }
+
+        final Path tmp = Files.createTempFile(cacheDir, cached.getFileName().toString(), ".tmp");
+        try {
+            final List<String> cmd = new ArrayList<>();
+            cmd.add(compiler);
+            cmd.addAll(flags);
+            cmd.add("-c");
+            cmd.add(source.toString());
+            cmd.add("-o");
+            cmd.add(tmp.toString());
+            final String output = run(cmd);
+            System.err.print(output);
+            if (!output.isEmpty()) {
+                // Written before the object so a cache hit always finds it
+                Files.write(log, output.getBytes(StandardCharsets.UTF_8));
+            }
+            Files.copy(tmp, object, StandardCopyOption.REPLACE_EXISTING);
+            // Other builds may race for the same key, either copy will do
+            Files.move(tmp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return false;
+    }
+
+    private String key(final Path source) throws IOException {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+        md.update(compilerVersion().getBytes(StandardCharsets.UTF_8));
+        for (final String flag : flags) {
+            md.update((byte) 0);
+            md.update(flag.getBytes(StandardCharsets.UTF_8));
+        }
+        digestWithIncludes(md, source, new HashSet<>());
+        final StringBuilder sb = new StringBuilder();
+        for (final byte b : md.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Feeds a file and every local header it includes (the ones found next
+     * to it) to the digest. System headers are covered by the compiler
+     * version.
+     */
+    private static void digestWithIncludes(final MessageDigest md, final Path file, final Set<Path> seen) throws IOException {
+        if (!seen.add(file.toAbsolutePath().normalize())) {
+            return;
+        }
+        final byte[] content = Files.readAllBytes(file);
+        md.update((byte) 0);
+        md.update(file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        md.update(content);
+        final Matcher m = LOCAL_INCLUDE.matcher(new String(content, StandardCharsets.UTF_8));
+        while (m.find()) {
+            final Path header = file.resolveSibling(m.group(1));
+            if (Files.isRegularFile(header)) {
+                digestWithIncludes(md, header, seen);
+            }
+        }
+    }
+
+    private synchronized String compilerVersion() throws IOException {
+        if (version == null) {
+            final List<String> cmd = new ArrayList<>();
+            cmd.add(compiler);
+            cmd.add("--version");
+            version = compiler + "\n" + run(cmd);
+        }
+        return version;
+    }
+
+    private static String run(final List<String> cmd) throws IOException {
+        final Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        final String output;
+        try (final InputStream in = p.getInputStream()) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                out.write(buf, 0, len);
+            }
+            output = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+        final int status;
+        try {
+            status = p.waitFor();
+        } catch (InterruptedException ex) {
+            p.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running " + cmd.get(0), ex);
+        }
+        if (status != 0) {
+            throw new IOException(String.join(" ", cmd) + " exited with " + status + "\n" + output);
+        }
+        return output;
+    }
+}
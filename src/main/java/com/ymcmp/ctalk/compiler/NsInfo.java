@@ -40,11 +40,15 @@ public class NsInfo implements Serializable {
     public final Visibility visibility;
     public final String name;
     public final String hierachy;
+    // First segment of hierachy, what internal visibility is checked against
+    public final String root;
 
     public NsInfo(Visibility visibility, String name, String hierachy) {
         this.visibility = visibility;
         this.name = name;
         this.hierachy = hierachy;
+        final int idx = hierachy.indexOf('/');
+        this.root = idx < 0 ? hierachy : hierachy.substring(0, idx);
     }
 
     @Override
@@ -53,42 +57,6 @@ public class NsInfo implements Serializable {
     }
 
     public static String toExternalName(String qualId) {
-        switch (qualId.substring(0, 2)) {
-        case "_T":
-            return qualId.substring(2);
-        case "_C":
-            break;
-        default:
-            return qualId;
-        }
-        final StringBuilder sb = new StringBuilder();
-        int idx = 2;
-        final char[] arr = qualId.toCharArray();
-        while (idx < arr.length && Character.isDigit(arr[idx])) {
-            int extLen = 0;
-            while (idx < arr.length && Character.isDigit(arr[idx])) {
-                extLen = extLen * 10 + Character.digit(arr[idx], 10);
-                ++idx;
-            }
-            sb.append(qualId.substring(idx, idx + extLen)).append("::");
-            idx += extLen;
-        }
-        sb.delete(sb.length() - 2, sb.length());
-
-        while (idx < arr.length && arr[idx] == '_') {
-            ++idx;
-            if (arr[idx] == 'v') {
-                sb.append("()");
-                break;
-            }
-            int extLen = 0;
-            while (idx < arr.length && Character.isDigit(arr[idx])) {
-                extLen = extLen * 10 + Character.digit(arr[idx], 10);
-                ++idx;
-            }
-            sb.append(':').append(qualId.substring(idx, idx + extLen));
-            idx += extLen;
-        }
-        return sb.toString();
+        return Mangler.shared().externalName(qualId);
     }
 }
@@ -0,0 +1,158 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parses CTalk programs. {@link Mode#TWO_STAGE} tries the faster SLL
+ * prediction first and bails out at the first syntax error, only then is the
+ * input parsed again with full LL prediction (which also reports the errors).
+ *
+ * Full LL is the default: calls used as initializers or followed by variadic
+ * arguments (most of std::string and std::io) are only resolved correctly
+ * with full context, so SLL bails out on them and the two stage parse ends
+ * up slower than LL alone.
+ *
+ * @author YTENG
+ */
+public final class ProgramParser {
+
+    public enum Mode {
+        TWO_STAGE, SLL, LL
+    }
+
+    private final Mode mode;
+
+    private final AtomicLong sllParses = new AtomicLong();
+    private final AtomicLong sllNanos = new AtomicLong();
+    private final AtomicLong llParses = new AtomicLong();
+    private final AtomicLong llNanos = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    public ProgramParser() {
+        this(Mode.LL);
+    }
+
+    public ProgramParser(final Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public GrammarParser.ProgramContext parse(final CharStream input) {
+        return parse(input, CompileStats.DISABLED);
+    }
+
+    /**
+     * Same as {@link #parse(CharStream)} but the input is lexed up front so
+     * lexing and parsing are timed separately.
+     *
+     * @param input The program
+     * @param stats Receives the lex and parse phases
+     * @return The parse tree
+     */
+    public GrammarParser.ProgramContext parse(final CharStream input, final CompileStats stats) {
+        final CommonTokenStream toks = new CommonTokenStream(new GrammarLexer(input));
+        try (final CompileStats.Span span = stats.begin("lex", null)) {
+            toks.fill();
+            // Without the EOF token
+            span.setTokens(toks.size() - 1);
+        }
+        try (final CompileStats.Span span = stats.begin("parse", null)) {
+            final GrammarParser.ProgramContext tree = parse(toks);
+            span.countTree(tree);
+            return tree;
+        }
+    }
+
+    private GrammarParser.ProgramContext parse(final CommonTokenStream toks) {
+        final GrammarParser parser = new GrammarParser(toks);
+        switch (mode) {
+        case LL:
+            return parseLL(parser);
+        case SLL:
+            parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+            return timed(parser, sllParses, sllNanos);
+        case TWO_STAGE:
+            parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+            parser.removeErrorListeners();
+            parser.setErrorHandler(new BailErrorStrategy());
+            try {
+                return timed(parser, sllParses, sllNanos);
+            } catch (ParseCancellationException ex) {
+                fallbacks.incrementAndGet();
+            }
+            toks.seek(0);
+            parser.reset();
+            parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            return parseLL(parser);
+        default:
+            throw new RuntimeException("Unhandled parse mode of " + mode);
+        }
+    }
+
+    private GrammarParser.ProgramContext parseLL(final GrammarParser parser) {
+        parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+        return timed(parser, llParses, llNanos);
+    }
+
+    private static GrammarParser.ProgramContext timed(final GrammarParser parser, final AtomicLong count, final AtomicLong nanos) {
+        final long start = System.nanoTime();
+        try {
+            return parser.program();
+        } finally {
+            nanos.addAndGet(System.nanoTime() - start);
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return A summary of how long each prediction mode took, meant for
+     * humans.
+     */
+    public String report() {
+        return String.format("parse mode %s%n  SLL: %d parses, %.3f ms%n  LL:  %d parses, %.3f ms%n  fallbacks from SLL to LL: %d",
+                             mode,
+                             sllParses.get(), sllNanos.get() / 1e6,
+                             llParses.get(), llNanos.get() / 1e6,
+                             fallbacks.get());
+    }
+
+    @Override
+    public String toString() {
+        return mode.toString();
+    }
+}
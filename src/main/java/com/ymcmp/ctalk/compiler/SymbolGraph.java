@@ -0,0 +1,173 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 Paul T.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.ymcmp.ctalk.compiler;
+
+import com.ymcmp.ctalk.compiler.NsInfo.Visibility;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * The top level definitions of a translation along with the symbols each of
+ * them refers to. Every definition keeps what it contributes to each section
+ * of the C file, so only the definitions reachable from a set of roots need
+ * to be written out.
+ *
+ * @author YTENG
+ */
+final class SymbolGraph {
+
+    static final class Decl {
+
+        final Object node;
+        final Visibility visibility;
+        // Text of the enclosing module, empty if there is none
+        final String namespace;
+        final StringBuilder forward = new StringBuilder();
+        final StringBuilder typedef = new StringBuilder();
+        final StringBuilder macro = new StringBuilder();
+        final StringBuilder proto = new StringBuilder();
+        final Set<String> refs = new HashSet<>();
+        String body = "";
+        // False while the body is still waiting to be translated
+        boolean translated = true;
+
+        Decl(Object node, Visibility visibility, String namespace) {
+            this.node = node;
+            this.visibility = visibility;
+            this.namespace = namespace;
+        }
+    }
+
+    private final List<Decl> decls = new ArrayList<>();
+    private final Map<Object, Decl> byNode = new IdentityHashMap<>();
+    private final Map<String, Decl> byName = new HashMap<>();
+
+    /**
+     * @param node The parse tree node of the definition
+     * @param visibility Visibility of the definition
+     * @param namespace Text of the enclosing module, empty if there is none
+     * @return The definition, created the first time the node is seen
+     */
+    Decl declare(final Object node, final Visibility visibility, final String namespace) {
+        Decl decl = byNode.get(node);
+        if (decl == null) {
+            decl = new Decl(node, visibility, namespace);
+            byNode.put(node, decl);
+            decls.add(decl);
+        }
+        return decl;
+    }
+
+    void bind(final String name, final Decl decl) {
+        byName.put(name, decl);
+    }
+
+    Decl lookup(final String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * @param roots Names of the symbols that are always kept
+     * @param keepExported Also keep every exported definition
+     * @param onReach Called once for every reachable definition before its
+     * references are followed, so references can still be added to it
+     * @return The definitions reachable from the roots
+     */
+    Set<Decl> reachable(final Collection<String> roots, final boolean keepExported, final Consumer<Decl> onReach) {
+        final Set<Decl> live = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Deque<Decl> pending = new ArrayDeque<>();
+        for (final String root : roots) {
+            final Decl decl = byName.get(root);
+            if (decl != null && live.add(decl)) {
+                pending.push(decl);
+            }
+        }
+        if (keepExported) {
+            for (final Decl decl : decls) {
+                if (decl.visibility == Visibility.EXPORT && live.add(decl)) {
+                    pending.push(decl);
+                }
+            }
+        }
+        while (!pending.isEmpty()) {
+            final Decl next = pending.pop();
+            onReach.accept(next);
+            for (final String ref : next.refs) {
+                final Decl decl = byName.get(ref);
+                if (decl != null && live.add(decl)) {
+                    pending.push(decl);
+                }
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Appends what the live definitions contribute to each section, in the
+     * order the definitions were declared. Forward typedefs go in reverse
+     * order, the same way they end up when every definition is kept.
+     *
+     * @return The code of the live definitions
+     */
+    String link(final Set<Decl> live, final StringBuilder forward, final StringBuilder typedef,
+                final StringBuilder macro, final StringBuilder proto) {
+        final StringBuilder body = new StringBuilder();
+        for (final Decl decl : decls) {
+            if (!live.contains(decl)) {
+                continue;
+            }
+            forward.insert(0, decl.forward);
+            typedef.append(decl.typedef);
+            macro.append(decl.macro);
+            proto.append(decl.proto);
+            body.append(decl.body).append('\n');
+        }
+        return body.toString();
+    }
+
+    int size() {
+        return decls.size();
+    }
+
+    int translated() {
+        int count = 0;
+        for (final Decl decl : decls) {
+            if (decl.translated) {
+                ++count;
+            }
+        }
+        return count;
+    }
+}
@@ -26,25 +26,35 @@ package com.ymcmp.ctalk.compiler;
 import com.ymcmp.ctalk.compiler.NsInfo.Visibility;
 
 import org.antlr.v4.runtime.CharStream;
-import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.RecognitionException;
-import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.Token;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
 
 /**
  *
@@ -56,41 +66,417 @@ public class Translator extends GrammarBaseVisitor<String> {
         INTERNAL, HIERACHY
     }
 
+    /**
+     * Stands in for the module name of the file being translated when it
+     * goes through the interface directory.
+     */
+    private static final String UNIT_QUAL_ID = "unit";
+
     private enum ProcState {
         GEN_SYM, GEN_CODE
     }
 
+    /**
+     * The different forms of the namespace of a module, computed once per
+     * namespace instead of for every definition and reference in it.
+     */
+    private static final class NsFrame {
+
+        final String text;
+        // What prefixes names in error messages and NsInfo.name
+        final String prior;
+        final String internal;
+        final String hierachy;
+        // Visibility of internal and hidden symbols from this namespace
+        final Map<NsInfo, Boolean> visible = new HashMap<>();
+
+        NsFrame(final String text, final Mangler mangler) {
+            this.text = text;
+            if (text.isEmpty()) {
+                prior = "";
+                internal = "_C";
+                hierachy = "_C";
+            } else {
+                prior = text + "::";
+                internal = mangler.namespace(text);
+                hierachy = mangler.hierachy(text);
+            }
+        }
+    }
+
+    // Function attributes and what GCC calls them
+    private static final Set<String> ATTRIBUTES = new HashSet<>(Arrays.asList(
+            "pure", "const", "hot", "cold", "noinline", "malloc"));
+    private static final CType ANY_TYPE = CType.primitive("void *");
+    private static final String ATTRIBUTE_MACRO = "#ifndef CTALK_ATTR\n"
+            + "#ifdef __GNUC__\n#define CTALK_ATTR(x) __attribute__(x)\n"
+            + "#else\n#define CTALK_ATTR(x)\n#endif\n"
+            + "#endif\n";
+    private static final String HINT_MACRO = "#ifndef CTALK_LIKELY\n"
+            + "#ifdef __GNUC__\n"
+            + "#define CTALK_LIKELY(x) __builtin_expect(!!(x), 1)\n"
+            + "#define CTALK_UNLIKELY(x) __builtin_expect(!!(x), 0)\n"
+            + "#else\n#define CTALK_LIKELY(x) (x)\n#define CTALK_UNLIKELY(x) (x)\n#endif\n"
+            // Only gcc has cold labels
+            + "#if defined(__GNUC__) && !defined(__clang__)\n"
+            + "#define CTALK_COLD_LABEL(l) l: __attribute__((cold, unused));\n"
+            + "#else\n#define CTALK_COLD_LABEL(l)\n#endif\n"
+            + "#endif\n";
+    // restrict is C99, older dialects may still know __restrict
+    private static final String RESTRICT_MACRO = "#ifndef CTALK_RESTRICT\n"
+            + "#if defined(__STDC_VERSION__) && __STDC_VERSION__ >= 199901L\n"
+            + "#define CTALK_RESTRICT restrict\n"
+            + "#elif defined(__GNUC__)\n#define CTALK_RESTRICT __restrict\n"
+            + "#else\n#define CTALK_RESTRICT\n#endif\n"
+            + "#endif\n";
+
     private final Map<String, NsInfo> nsInfo = new HashMap<>();
     private final Set<String> importSet = new HashSet<>();
-    private final Deque<GrammarParser.NamespaceContext> currentNs = new ArrayDeque<>();
+    private final Deque<NsFrame> currentNs = new ArrayDeque<>();
+    private final Map<String, NsFrame> nsFrames = new HashMap<>();
+    private final Mangler mangler = Mangler.shared();
+    private final NsFrame topFrame = new NsFrame("", mangler);
+    // Mangled form of each namespace in the parse trees, _ already resolved
+    private final Map<GrammarParser.NamespaceContext, String> nsNames = new IdentityHashMap<>();
     private final Deque<URI> currentFile = new ArrayDeque<>();
-    private final Deque<Deque<LocalVar>> locals = new ArrayDeque<>();
+    private final LocalScopes locals = new LocalScopes();
     private final StringBuilder textBuf = new StringBuilder();
     private final StringBuilder pasteInclude = new StringBuilder();
-    private final StringBuilder pasteTypedef = new StringBuilder();
-    private final StringBuilder pasteMacro = new StringBuilder();
-    private final StringBuilder head = new StringBuilder();
+    // Switched to the sections of a definition while it is translated when
+    // eliminating dead code
+    private StringBuilder forwardTypedef = new StringBuilder();
+    private StringBuilder pasteTypedef = new StringBuilder();
+    private StringBuilder pasteMacro = new StringBuilder();
+    private StringBuilder head = new StringBuilder();
+    // Inline definitions, only kept apart when building an interface
+    private final StringBuilder pasteInline = new StringBuilder();
     private final StringBuilder tail = new StringBuilder();
 
     private Visibility visibility = Visibility.HIDDEN;
+    // Set while translating the body of an inline function with external
+    // linkage, which may not refer to anything with internal linkage
+    private boolean externalInline = false;
     private MangleScheme mangleScheme = MangleScheme.INTERNAL;
     private ProcState procState = ProcState.GEN_SYM;
     private String paramSeparator = ",";
     private LocalVar currentVar = null;
+    private final TypeVisitor types = new TypeVisitor();
+
+    private final ModuleCache moduleCache;
+    private ProgramParser programParser = new ProgramParser();
+    private CompileStats stats = CompileStats.DISABLED;
+    private boolean autoInline = false;
+    // Macros already pasted into the includes
+    private final Set<String> pastedMacros = new HashSet<>();
+    private int coldLabels = 0;
+
+    // Only used when eliminating dead code
+    private SymbolGraph graph = null;
+    private boolean keepExported = false;
+    private SymbolGraph.Decl currentDecl = null;
+
+    // Only used when imports go through .cti interface files
+    private Path interfaceDir = null;
+    private final Map<URI, ModuleInterface> interfaces;
+    private final Set<URI> building;
+    private final Set<URI> rebuilt;
+    private final Map<String, URI> directImports = new LinkedHashMap<>();
+    private final Set<String> importedSymbols = new HashSet<>();
+    private final boolean replayImports;
 
     public Translator(final URI uri) {
+        this(uri, ModuleCache.shared());
+    }
+
+    public Translator(final URI uri, final ModuleCache moduleCache) {
+        this.moduleCache = moduleCache;
+        this.interfaces = new LinkedHashMap<>();
+        this.building = new HashSet<>();
+        this.rebuilt = new HashSet<>();
+        this.replayImports = true;
         currentFile.add(uri);
     }
 
+    /**
+     * Creates a translator that builds the interface of an imported module.
+     * Imports only register symbols, so the sections it fills up only hold
+     * what the module itself contributes.
+     */
+    private Translator(final Translator parent, final URI uri) {
+        this.moduleCache = parent.moduleCache;
+        this.programParser = parent.programParser;
+        this.stats = parent.stats;
+        this.autoInline = parent.autoInline;
+        this.interfaceDir = parent.interfaceDir;
+        this.interfaces = parent.interfaces;
+        this.building = parent.building;
+        this.rebuilt = parent.rebuilt;
+        this.replayImports = false;
+        currentFile.addAll(parent.currentFile);
+        currentFile.push(uri);
+    }
+
+    /**
+     * @param parser Used to parse imported modules
+     */
+    public void setProgramParser(final ProgramParser parser) {
+        this.programParser = parser;
+    }
+
+    /**
+     * @param stats Receives the time spent in each pass and on each import
+     */
+    public void setStats(final CompileStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * @param autoInline Make hidden functions consisting of a single
+     * statement inline, as if they were declared with the inline keyword
+     */
+    public void setAutoInline(final boolean autoInline) {
+        this.autoInline = autoInline;
+    }
+
+    /**
+     * @param enabled Only write the definitions the entry point can reach,
+     * imported ones included. Does not work with interface files.
+     * @param keepExported Also keep every exported definition and what it
+     * reaches, for when the output is a library
+     */
+    public void setDeadCodeElimination(final boolean enabled, final boolean keepExported) {
+        this.graph = enabled ? new SymbolGraph() : null;
+        this.keepExported = keepExported;
+    }
+
+    /**
+     * Makes imported modules go through {@code .cti} interface files stored
+     * in a directory. Interfaces are rebuilt when the module or the
+     * interface hash of any module it imports changes.
+     *
+     * @param dir The directory, null disables interface files
+     */
+    public void setInterfaceDirectory(final Path dir) {
+        this.interfaceDir = dir;
+    }
+
     public String generate(GrammarParser.ProgramContext ctx, final String entryFuncId) {
+        final StringWriter out = new StringWriter();
+        try {
+            generate(ctx, entryFuncId, out);
+        } catch (IOException ex) {
+            // StringWriter never throws
+            throw new UncheckedIOException(ex);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Translates a program and writes the C code section by section. Blank
+     * lines are dropped on the way out so the output is never held in
+     * memory as a whole.
+     *
+     * @param ctx The program
+     * @param entryFuncId Name of the function called by the C main function
+     * @param writer Where the C code goes. It is flushed but not closed.
+     * @throws IOException If writing fails
+     */
+    public void generate(GrammarParser.ProgramContext ctx, final String entryFuncId, final Writer writer) throws IOException {
+        if (graph != null && interfaceDir != null) {
+            throw new IllegalStateException("Dead code elimination does not work with interface files");
+        }
         // This has to be processed before head and tail
         procState = ProcState.GEN_SYM;
-        visitProgram(ctx); // ignore output
+        final CompileStats.Span genSym = stats.begin("GEN_SYM", null);
+        try {
+            collectSymbols(ctx);
+        } finally {
+            genSym.close();
+        }
         importSet.clear();
 
         procState = ProcState.GEN_CODE;
-        final String body = visitProgram(ctx);
+        final CompileStats.Span genCode = stats.begin("GEN_CODE", null);
+        try {
+            final BlankLineFilterWriter out = new BlankLineFilterWriter(writer);
+            if (graph == null) {
+                writeSections(out);
+                for (final GrammarParser.ProgramLevelContext level : ctx.p) {
+                    out.write(visit(level));
+                    out.write('\n');
+                }
+            } else {
+                // Nothing can be written before every body is translated
+                for (final GrammarParser.ProgramLevelContext level : ctx.p) {
+                    visit(level);
+                }
+                final Set<SymbolGraph.Decl> live = graph.reachable(
+                        Collections.singleton(entryName(entryFuncId)), keepExported, this::translateDeferred);
+                stats.setDefinitions(live.size(), graph.translated(), graph.size());
+                final String body = graph.link(live, forwardTypedef, pasteTypedef, pasteMacro, head);
+                writeSections(out);
+                out.write(body);
+            }
+            writeEntry(out, entryFuncId);
+        } finally {
+            genCode.close();
+        }
+        stats.setSymbols(nsInfo.size());
+    }
+
+    /**
+     * Translates the file this translator was created for through the
+     * interface directory, the file itself being treated like an imported
+     * module. If neither the file nor the interface of any module it
+     * imports has changed, nothing is translated again and the C code is
+     * put together from the interface files alone. The import graph is
+     * recorded next to the interface of the file.
+     *
+     * @param entryFuncId Name of the function called by the C main function
+     * @param writer Where the C code goes. It is flushed but not closed.
+     * @throws IOException If reading or writing fails
+     */
+    public void generateIncremental(final String entryFuncId, final Writer writer) throws IOException {
+        if (interfaceDir == null) {
+            throw new IllegalStateException("Incremental translation requires an interface directory");
+        }
+        final URI f = currentFile.peek();
+        try {
+            procState = ProcState.GEN_SYM;
+            final CompileStats.Span genSym = stats.begin("GEN_SYM", null);
+            try {
+                importInterface(UNIT_QUAL_ID, f);
+            } finally {
+                genSym.close();
+            }
+            importSet.clear();
+
+            procState = ProcState.GEN_CODE;
+            final CompileStats.Span genCode = stats.begin("GEN_CODE", null);
+            try {
+                final BlankLineFilterWriter out = new BlankLineFilterWriter(writer);
+                writeSections(out);
+                out.write(importInterface(UNIT_QUAL_ID, f));
+                out.write('\n');
+                writeEntry(out, entryFuncId);
+            } finally {
+                genCode.close();
+            }
+            stats.setSymbols(nsInfo.size());
+        } finally {
+            writeImportGraph(ModuleInterface.pathFor(interfaceDir, UNIT_QUAL_ID, f), f);
+        }
+    }
+
+    /**
+     * Translates the file this translator was created for into one C file
+     * and one header per module, the file itself included, going through
+     * the interface directory like {@link #generateIncremental}. Files whose
+     * content did not change are left alone so their objects can be reused.
+     * A link manifest named after the file lists the object of every module.
+     *
+     * @param entryFuncId Name of the function called by the C main function
+     * @param outputDir Where the C files, headers and manifest go
+     * @return The link manifest
+     * @throws IOException If reading or writing fails
+     */
+    public Path generateSeparate(final String entryFuncId, final Path outputDir) throws IOException {
+        if (interfaceDir == null) {
+            throw new IllegalStateException("Separate compilation requires an interface directory");
+        }
+        final URI f = currentFile.peek();
+        final ModuleInterface unit;
+        final CompileStats.Span loading = stats.begin("interfaces", null);
+        try {
+            unit = loadInterface(UNIT_QUAL_ID, f);
+        } finally {
+            loading.close();
+            writeImportGraph(ModuleInterface.pathFor(interfaceDir, UNIT_QUAL_ID, f), f);
+        }
+
+        final CompileStats.Span writing = stats.begin("write", null);
+        try {
+            Files.createDirectories(outputDir);
+            final StringBuilder manifest = new StringBuilder();
+            manifest.append("# objects of ").append(f).append('\n');
+            for (final ModuleInterface mi : interfaces.values()) {
+                final String entry = mi == unit
+                        ? "int main (int argc, char **argv) { return " + entryName(entryFuncId) + "(argc, argv); }"
+                        : "";
+                writeIfChanged(outputDir.resolve(mi.stem() + ".h"), mi.header());
+                writeIfChanged(outputDir.resolve(mi.stem() + ".c"), mi.source(entry));
+                manifest.append(mi.stem()).append(".o\n");
+            }
+            String name = Paths.get(f.getPath()).getFileName().toString();
+            if (name.endsWith(".ct")) {
+                name = name.substring(0, name.length() - 3);
+            }
+            final Path manifestFile = outputDir.resolve(name + ".link");
+            writeIfChanged(manifestFile, manifest.toString());
+            return manifestFile;
+        } finally {
+            writing.close();
+        }
+    }
+
+    private static void writeIfChanged(final Path file, final String content) throws IOException {
+        final StringWriter buf = new StringWriter();
+        final BlankLineFilterWriter out = new BlankLineFilterWriter(buf);
+        out.write(content);
+        out.flush();
+        buf.write('\n');
+        final byte[] bytes = buf.toString().getBytes(StandardCharsets.UTF_8);
+        if (Files.isRegularFile(file) && Arrays.equals(bytes, Files.readAllBytes(file))) {
+            return;
+        }
+        Files.write(file, bytes);
+    }
+
+    /**
+     * @return The modules (and the entry file) whose interfaces had to be
+     * translated again, the others were reused as is.
+     */
+    public Set<URI> getRebuiltModules() {
+        return Collections.unmodifiableSet(rebuilt);
+    }
+
+    private void writeImportGraph(final Path ctiFile, final URI unit) throws IOException {
+        final String name = ctiFile.getFileName().toString();
+        final Path file = ctiFile.resolveSibling(name.substring(0, name.length() - ModuleInterface.EXTENSION.length()) + ".graph");
+        final StringBuilder sb = new StringBuilder();
+        sb.append("# import graph of ").append(unit).append('\n');
+        for (final ModuleInterface mi : interfaces.values()) {
+            sb.append(String.format("%s %s source=%08x interface=%08x %s%n",
+                                    mi.qualId, mi.source, mi.sourceChecksum, mi.interfaceHash,
+                                    rebuilt.contains(mi.source) ? "rebuilt" : "reused"));
+            for (final ModuleInterface.Dependency dep : mi.deps) {
+                sb.append("  -> ").append(dep.qualId).append(' ').append(dep.source).append('\n');
+            }
+        }
+        Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeSections(final BlankLineFilterWriter out) throws IOException {
+        out.write("#include <stdbool.h>\n#include <stddef.h>\n");
+        out.write(pasteInclude);
+        out.write("/* END OF INCLUDES */\n");
+        out.write(forwardTypedef);
+        out.write(pasteTypedef);
+        out.write("/* END OF TYPEDEFS */\n");
+        out.write(pasteMacro);
+        out.write("/* END OF MACROS */\n");
+        out.write(head);
+        out.write("/* END OF PROTOTYPES */\n");
+    }
+
+    private void writeEntry(final BlankLineFilterWriter out, final String entryFuncId) throws IOException {
+        out.write(tail);
+        out.write('\n');
+        out.write("int main (int argc, char **argv) { return " + entryName(entryFuncId) + "(argc, argv); }");
+        out.flush();
+    }
 
+    private static String entryName(final String entryFuncId) {
         // demo::main:argc:argv => demo main:argc:argv
         final String[] nsPart = entryFuncId.split("::");
         final StringBuilder ent = new StringBuilder();
@@ -105,20 +491,27 @@ public class Translator extends GrammarBaseVisitor<String> {
             final String fragment = nameSel[i];
             ent.append('_').append(fragment.length()).append(fragment);
         }
-
-        final String entry = "int main (int argc, char **argv) { return " + ent.toString() + "(argc, argv); }";
-        return Arrays.stream(("#include <stdbool.h>\n#include <stddef.h>\n"
-                + pasteInclude.toString() + "/* END OF INCLUDES */\n"
-                + pasteTypedef.toString() + "/* END OF TYPEDEFS */\n"
-                + pasteMacro.toString() + "/* END OF MACROS */\n"
-                + head.toString() + "/* END OF PROTOTYPES */\n"
-                + body + "\n" + tail.toString() + "\n" + entry).split("\n"))
-                .filter(e -> !e.trim().isEmpty())
-                .collect(Collectors.joining("\n"));
+        return ent.toString();
+    }
+
+    /**
+     * Fills nsInfo and the pasted sections with declarations only. Function
+     * bodies and initializers of module variables are not translated.
+     *
+     * @param ctx The program being processed
+     */
+    private void collectSymbols(GrammarParser.ProgramContext ctx) {
+        for (final GrammarParser.ProgramLevelContext level : ctx.p) {
+            visit(level);
+        }
     }
 
     @Override
     public String visitProgram(GrammarParser.ProgramContext ctx) {
+        if (procState == ProcState.GEN_SYM) {
+            collectSymbols(ctx);
+            return "";
+        }
         // This has to be processed before head and tail
         return ctx.p.stream().map(this::visit).collect(Collectors.joining("\n"));
     }
@@ -130,7 +523,73 @@ public class Translator extends GrammarBaseVisitor<String> {
 
     @Override
     public String visitTopLevel(GrammarParser.TopLevelContext ctx) {
-        return visit(ctx.getChild(0));
+        if (graph == null) {
+            return visit(ctx.getChild(0));
+        }
+        // Whatever the definition adds to the sections goes to its own ones,
+        // what it refers to is recorded while it is current
+        final SymbolGraph.Decl decl = graph.declare(ctx, visibility, currentNs.isEmpty() ? "" : currentNs.peek().text);
+        if (procState == ProcState.GEN_CODE && decl.translated && currentFile.size() > 1) {
+            // Bodies of imported definitions wait until something reachable
+            // refers to them, see translateDeferred
+            decl.translated = false;
+            return "";
+        }
+        final SymbolGraph.Decl oldDecl = currentDecl;
+        final StringBuilder oldForward = forwardTypedef;
+        final StringBuilder oldTypedef = pasteTypedef;
+        final StringBuilder oldMacro = pasteMacro;
+        final StringBuilder oldHead = head;
+        currentDecl = decl;
+        forwardTypedef = decl.forward;
+        pasteTypedef = decl.typedef;
+        pasteMacro = decl.macro;
+        head = decl.proto;
+        try {
+            final String code = visit(ctx.getChild(0));
+            if (procState == ProcState.GEN_CODE) {
+                decl.body = code;
+            }
+        } finally {
+            currentDecl = oldDecl;
+            forwardTypedef = oldForward;
+            pasteTypedef = oldTypedef;
+            pasteMacro = oldMacro;
+            head = oldHead;
+        }
+        return "";
+    }
+
+    /**
+     * Translates the body of an imported definition the first time it is
+     * found to be reachable, in the module it was declared in.
+     */
+    private void translateDeferred(final SymbolGraph.Decl decl) {
+        if (decl.translated) {
+            return;
+        }
+        decl.translated = true;
+        final Visibility oldVisibility = visibility;
+        final NsFrame frame = decl.namespace.isEmpty() ? null : nsFrames.get(decl.namespace);
+        if (frame != null) {
+            currentNs.push(frame);
+        }
+        visibility = decl.visibility;
+        try {
+            visitTopLevel((GrammarParser.TopLevelContext) decl.node);
+        } finally {
+            visibility = oldVisibility;
+            if (frame != null) {
+                currentNs.pop();
+            }
+        }
+    }
+
+    private void declareSymbol(final String name, final NsInfo info) {
+        nsInfo.put(name, info);
+        if (currentDecl != null) {
+            graph.bind(name, currentDecl);
+        }
     }
 
     @Override
@@ -140,17 +599,21 @@ public class Translator extends GrammarBaseVisitor<String> {
         }
         switch (mangleScheme) {
         case HIERACHY:
-            return ctx.getText().replaceAll("::", "/");
+            return mangler.hierachy(ctx.getText());
         case INTERNAL: {
-            String[] sec = ctx.getText().split("::");
-            if (sec[0].equals("_")) {
-                sec = (currentNs.peek().getText() + ctx.getText().substring(1)).split("::");
-            }
-            final StringBuilder sb = new StringBuilder("_C");
-            for (final String part : sec) {
-                sb.append(part.length()).append(part);
+            String ret = nsNames.get(ctx);
+            if (ret == null) {
+                String text = ctx.getText();
+                if (ctx.UNDERSCORE() != null) {
+                    if (currentNs.isEmpty()) {
+                        throw new RuntimeException("Illegal use of _ in " + text + " outside of a module");
+                    }
+                    text = currentNs.peek().text + text.substring(1);
+                }
+                ret = mangler.namespace(text);
+                nsNames.put(ctx, ret);
             }
-            return sb.toString();
+            return ret;
         }
         default:
             throw new RuntimeException("Unhandled namespace mangle scheme of " + mangleScheme);
@@ -159,24 +622,28 @@ public class Translator extends GrammarBaseVisitor<String> {
 
     @Override
     public String visitDefFunction(GrammarParser.DefFunctionContext ctx) {
-        final String retType = ctx.r == null ? "void %s" : visit(ctx.r);
+        final CType retType = ctx.r == null ? CType.VOID : types.visit(ctx.r);
         final String tmp = textBuf.toString();
         textBuf.setLength(0);
-        locals.add(new ArrayDeque<>());
+        locals.push();
         paramSeparator = ",";
         final String params = visit(ctx.p);
         // Parameters *MUST* be processed before name
-        mangleScheme = MangleScheme.INTERNAL;
+        final NsFrame frame = currentFrame();
         final String rawName = ctx.n.getText();
-        final String name = visitNamespace(currentNs.peek()) + rawName.length() + rawName + textBuf.toString();
-        mangleScheme = MangleScheme.HIERACHY;
-        {
-            final String prior = currentNs.peek() == null ? "" : (currentNs.peek().getText() + "::");
-            nsInfo.put(name, new NsInfo(visibility, prior + rawName.length() + rawName, visitNamespace(currentNs.peek())));
-        }
+        final String name = frame.internal + mangler.part(rawName) + textBuf.toString();
+        declareSymbol(name, new NsInfo(visibility, frame.prior + mangler.part(rawName), frame.hierachy));
         textBuf.setLength(0);
         textBuf.append(tmp);
-        final String proto = String.format(retType, name + " " + params);
+        final String proto = retType.declare(name + " " + params);
+        final Set<String> attrs = attributeSet(ctx.a);
+        if (ctx.i != null && attrs.contains("noinline")) {
+            throw new RuntimeException("Function " + name + " cannot be both inline and noinline");
+        }
+        // C99 inline: exported ones are extern inline so exactly one
+        // translation unit provides the out-of-line definition
+        final boolean inline = ctx.i != null
+                || (autoInline && visibility == Visibility.HIDDEN && ctx.s.size() == 1 && !attrs.contains("noinline"));
         String ret = "";
         switch (procState) {
         case GEN_SYM:
@@ -191,19 +658,98 @@ public class Translator extends GrammarBaseVisitor<String> {
             default:
                 throw new AssertionError("Visibility of " + visibility + " not handled!");
             }
-            head.append(' ').append(proto).append(";\n");
+            if (inline) {
+                head.append(" inline");
+            }
+            head.append(' ').append(proto).append(attributeList(attrs)).append(";\n");
+            // Bodies are only translated after the includes are written
+            if (!pastedMacros.contains(HINT_MACRO)
+                    && ctx.s.stream().anyMatch(s -> hasToken(s, GrammarLexer.K_LIKELY, GrammarLexer.K_UNLIKELY))) {
+                pasteMacroOnce(HINT_MACRO);
+            }
+            if (!pastedMacros.contains(RESTRICT_MACRO)
+                    && ctx.s.stream().anyMatch(s -> hasToken(s, GrammarLexer.K_RESTRICT))) {
+                pasteMacroOnce(RESTRICT_MACRO);
+            }
             break;
         case GEN_CODE:
+            externalInline = inline && visibility != Visibility.HIDDEN;
             final String body = ctx.s.stream().map(this::visit).collect(Collectors.joining("\n"));
-            ret = proto + "\n{\n" + body + "\n}";
+            externalInline = false;
+            if (!inline) {
+                ret = proto + "\n{\n" + body + "\n}";
+            } else if (replayImports || visibility == Visibility.HIDDEN) {
+                // Hidden ones are static inline, only this module sees them
+                ret = "inline " + proto + "\n{\n" + body + "\n}";
+            } else {
+                // Goes to the header of the module with separate compilation
+                pasteInline.append("inline ").append(proto).append("\n{\n").append(body).append("\n}\n");
+            }
             break;
         default:
             throw new RuntimeException("Unhandled process state of " + procState);
         }
-        locals.removeLast();
+        locals.pop();
+        return ret;
+    }
+
+    private static Set<String> attributeSet(final GrammarParser.AttributesContext ctx) {
+        if (ctx == null) {
+            return Collections.emptySet();
+        }
+        final Set<String> ret = new LinkedHashSet<>();
+        for (final GrammarParser.AttributeContext attr : ctx.a) {
+            final String name = attr.getText();
+            if (!ATTRIBUTES.contains(name)) {
+                throw new RuntimeException("Unknown function attribute " + name + ", expected one of " + ATTRIBUTES);
+            }
+            ret.add(name);
+        }
         return ret;
     }
 
+    /**
+     * @param attrs Attributes of a function
+     * @return What goes after the prototype, like
+     * {@code  CTALK_ATTR((pure, hot))}. Compilers other than GCC and clang
+     * get nothing.
+     */
+    private String attributeList(final Set<String> attrs) {
+        if (attrs.isEmpty()) {
+            return "";
+        }
+        pasteMacroOnce(ATTRIBUTE_MACRO);
+        return attrs.stream().collect(Collectors.joining(", ", " CTALK_ATTR((", "))"));
+    }
+
+    /**
+     * Macros used by the generated code go with the includes, the only
+     * section that is written out before function bodies are translated.
+     */
+    private void pasteMacroOnce(final String macro) {
+        if (pastedMacros.add(macro)) {
+            pasteInclude.append(macro);
+        }
+    }
+
+    private static boolean hasToken(final ParseTree tree, final int... types) {
+        if (tree instanceof TerminalNode) {
+            final int type = ((TerminalNode) tree).getSymbol().getType();
+            for (final int t : types) {
+                if (type == t) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        for (int i = 0; i < tree.getChildCount(); ++i) {
+            if (hasToken(tree.getChild(i), types)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public String visitDefParams(GrammarParser.DefParamsContext ctx) {
         if (ctx.getChild(0).getText().equals("(")) {
@@ -224,35 +770,34 @@ public class Translator extends GrammarBaseVisitor<String> {
 
     @Override
     public String visitDefParam(GrammarParser.DefParamContext ctx) {
-        final String ts = visit(ctx.getChild(ctx.getChildCount() - 1));
+        final CType type = types.visit(ctx.getChild(ctx.getChildCount() - 1));
         final StringBuilder sb = new StringBuilder();
         for (int i = 0; i < ctx.getChildCount() - 2; i += 2) {
             final String pname = ctx.getChild(i).getText();
-            final String iname = "_C" + pname.length() + pname;
-            locals.peek().add(new LocalVar(iname, String.format(ts, "")));
-            textBuf.append('_').append(pname.length()).append(pname);
-            sb.append(String.format(ts, iname)).append(paramSeparator);
+            final String iname = mangler.local(pname);
+            locals.declare(new LocalVar(type.declaredName(iname), type));
+            textBuf.append(mangler.selector(pname));
+            type.declare(sb, iname);
+            sb.append(paramSeparator);
         }
         return sb.deleteCharAt(sb.length() - 1).toString();
     }
 
     @Override
     public String visitDefModuleVar(GrammarParser.DefModuleVarContext ctx) {
-        final String ts = visit(ctx.getChild(ctx.getChildCount() - 1));
+        final CType type = types.visit(ctx.getChild(ctx.getChildCount() - 1));
         final StringBuilder sb = new StringBuilder();
         for (int i = 0; i < ctx.getChildCount() - 2; i += 2) {
             textBuf.setLength(0);
-            final String pname = visit(ctx.getChild(i));
-            mangleScheme = MangleScheme.HIERACHY;
-            final String hname = visitNamespace(currentNs.peek()) + "/" + pname;
-            mangleScheme = MangleScheme.INTERNAL;
-            final String iname = visitNamespace(currentNs.peek()) + pname.length() + pname;
-            nsInfo.put(iname, new NsInfo(visibility, iname, hname));
-            sb.append(String.format(ts, iname));
-            if (procState == ProcState.GEN_CODE) {
-                sb.append(textBuf);
-            }
-            sb.append(';');
+            // Initializers are only needed when generating code
+            final String pname = procState == ProcState.GEN_SYM
+                    ? ((GrammarParser.LocalInitContext) ctx.getChild(i)).n.getText()
+                    : visit(ctx.getChild(i));
+            final NsFrame frame = currentFrame();
+            final String iname = frame.internal + mangler.part(pname);
+            declareSymbol(type.declaredName(iname), new NsInfo(visibility, iname, frame.hierachy));
+            type.declare(sb, iname);
+            sb.append(textBuf).append(';');
         }
         switch (procState) {
         case GEN_SYM:
@@ -270,8 +815,9 @@ public class Translator extends GrammarBaseVisitor<String> {
             head.append(sb).append('\n');
             break;
         case GEN_CODE:
-            head.append(sb).append('\n');
-            break;
+            // Prototypes are already in head, so the definition can go
+            // wherever the module variable was declared
+            return sb.toString();
         default:
             throw new RuntimeException("Unhandled process phase of " + procState + " when define module variables");
         }
@@ -280,14 +826,15 @@ public class Translator extends GrammarBaseVisitor<String> {
 
     @Override
     public String visitDefLocal(GrammarParser.DefLocalContext ctx) {
-        final String ts = visit(ctx.getChild(ctx.getChildCount() - 1));
+        final CType type = types.visit(ctx.getChild(ctx.getChildCount() - 1));
         final StringBuilder sb = new StringBuilder();
         for (int i = 0; i < ctx.getChildCount() - 2; i += 2) {
             textBuf.setLength(0);
             final String pname = visit(ctx.getChild(i));
-            final String iname = "_C" + pname.length() + pname;
-            locals.peek().add(new LocalVar(iname, String.format(ts, "")));
-            sb.append(String.format(ts, iname)).append(textBuf).append(';');
+            final String iname = mangler.local(pname);
+            locals.declare(new LocalVar(type.declaredName(iname), type));
+            type.declare(sb, iname);
+            sb.append(textBuf).append(';');
         }
         return sb.deleteCharAt(sb.length() - 1).toString();
     }
@@ -300,95 +847,132 @@ public class Translator extends GrammarBaseVisitor<String> {
         return ctx.n.getText();
     }
 
-    @Override
-    public String visitValueRetType(GrammarParser.ValueRetTypeContext ctx) {
-        return visit(ctx.getChild(1));
-    }
+    /**
+     * Builds the C types of type ids. Array bounds and the parameters of
+     * function types are translated by the enclosing translator.
+     */
+    private final class TypeVisitor extends GrammarBaseVisitor<CType> {
 
-    @Override
-    public String visitVoidRetType(GrammarParser.VoidRetTypeContext ctx) {
-        return "void %s";
-    }
+        @Override
+        public CType visitValueRetType(GrammarParser.ValueRetTypeContext ctx) {
+            return visit(ctx.getChild(1));
+        }
 
-    @Override
-    public String visitLesserFloatPoint(GrammarParser.LesserFloatPointContext ctx) {
-        return ctx.children.stream().map(ParseTree::getText).collect(Collectors.joining(" "));
-    }
+        @Override
+        public CType visitVoidRetType(GrammarParser.VoidRetTypeContext ctx) {
+            return CType.VOID;
+        }
 
-    @Override
-    public String visitFloatPoint(GrammarParser.FloatPointContext ctx) {
-        final String base = visit(ctx.f);
-        if (ctx.getChildCount() > 1) {
-            final String mod;
-            switch (ctx.getChild(0).getText()) {
-            case "complex":
-                mod = "_Complex";
-                break;
-            case "imaginary":
-                mod = "_Imaginary";
-                break;
-            default:
-                throw new RuntimeException("Unhandled float point modifier of " + ctx.getChild(0).getText());
+        @Override
+        public CType visitStdTypeId(GrammarParser.StdTypeIdContext ctx) {
+            return visit(ctx.getChild(0));
+        }
+
+        @Override
+        public CType visitFloatPoint(GrammarParser.FloatPointContext ctx) {
+            final String base = joinTokens(ctx.f);
+            if (ctx.getChildCount() > 1) {
+                final String mod;
+                switch (ctx.getChild(0).getText()) {
+                case "complex":
+                    mod = "_Complex";
+                    break;
+                case "imaginary":
+                    mod = "_Imaginary";
+                    break;
+                default:
+                    throw new RuntimeException("Unhandled float point modifier of " + ctx.getChild(0).getText());
+                }
+                return CType.primitive(base + " " + mod);
             }
-            return base + " " + mod + " %s";
+            return CType.primitive(base);
         }
-        return base + " %s";
-    }
 
-    @Override
-    public String visitLesserIntegral(GrammarParser.LesserIntegralContext ctx) {
-        return ctx.children.stream().map(ParseTree::getText).collect(Collectors.joining(" "));
-    }
+        @Override
+        public CType visitIntegral(GrammarParser.IntegralContext ctx) {
+            final String base = joinTokens(ctx.i);
+            if (ctx.getChildCount() > 1) {
+                return CType.primitive(ctx.getChild(0).getText() + " " + base);
+            }
+            return CType.primitive(base);
+        }
 
-    @Override
-    public String visitIntegral(GrammarParser.IntegralContext ctx) {
-        final String base = visit(ctx.i);
-        if (ctx.getChildCount() > 1) {
-            return ctx.getChild(0).getText() + " " + base + " %s";
+        private String joinTokens(final ParserRuleContext ctx) {
+            if (ctx.getChildCount() == 1) {
+                return ctx.getChild(0).getText();
+            }
+            return ctx.children.stream().map(ParseTree::getText).collect(Collectors.joining(" "));
         }
-        return base + " %s";
-    }
 
-    @Override
-    public String visitPrimTypeId(GrammarParser.PrimTypeIdContext ctx) {
-        String type = ctx.getText();
-        if (type.equals("any_t")) {
-            type = "void *";
+        @Override
+        public CType visitPrimTypeId(GrammarParser.PrimTypeIdContext ctx) {
+            final String type = ctx.getText();
+            if (type.equals("any_t")) {
+                return ANY_TYPE;
+            }
+            return CType.primitive(type);
         }
-        return type + " %s";
-    }
 
-    @Override
-    public String visitNsTypeId(GrammarParser.NsTypeIdContext ctx) {
-        mangleScheme = MangleScheme.INTERNAL;
-        final String t = visit(ctx.n);
-        checkCallVisibility(t);
-        return t + " %s";
-    }
+        @Override
+        public CType visitNsTypeId(GrammarParser.NsTypeIdContext ctx) {
+            mangleScheme = MangleScheme.INTERNAL;
+            final String t = Translator.this.visit(ctx.n);
+            // Types have no linkage, inline functions may use hidden ones
+            checkVisibility(t);
+            return CType.named(t);
+        }
 
-    @Override
-    public String visitPtrTypeId(GrammarParser.PtrTypeIdContext ctx) {
-        if (ctx.c != null) {
-            final String size = visit(ctx.c);
-            return String.format(visit(ctx.t), "(%s)[" + size + "]");
+        @Override
+        public CType visitPtrTypeId(GrammarParser.PtrTypeIdContext ctx) {
+            if (ctx.c != null) {
+                final String size = Translator.this.visit(ctx.c);
+                return new CType.Array(visit(ctx.t), size);
+            }
+            return visit(ctx.t).pointer();
         }
-        return String.format(visit(ctx.t), "* %s");
-    }
 
-    @Override
-    public String visitFuncTypeId(GrammarParser.FuncTypeIdContext ctx) {
-        final String old = textBuf.toString();
-        textBuf.setLength(0);
-        paramSeparator = ",";
-        // Create dummy scope
-        locals.add(new ArrayDeque<>());
-        final String p = visit(ctx.p);
-        final String sel = textBuf.toString();
-        locals.removeFirst();
-        textBuf.setLength(0);
-        textBuf.append(old);
-        final String retType = visit(ctx.r);
-        return String.format(retType, "(* %s" + sel + ")" + p);
+        @Override
+        public CType visitFuncTypeId(GrammarParser.FuncTypeIdContext ctx) {
+            final String old = textBuf.toString();
+            textBuf.setLength(0);
+            paramSeparator = ",";
+            // Create dummy scope
+            locals.push();
+            final String p = Translator.this.visit(ctx.p);
+            final String sel = textBuf.toString();
+            locals.pop();
+            textBuf.setLength(0);
+            textBuf.append(old);
+            return new CType.Function(visit(ctx.r), sel, p);
+        }
+
+        @Override
+        public CType visitBasicTypeId(GrammarParser.BasicTypeIdContext ctx) {
+            final CType t = visit(ctx.t);
+            if (ctx.c == null && ctx.r == null) {
+                return ctx.v == null ? t : new CType.Qualified(t, " volatile");
+            }
+            final String q = (ctx.c == null ? "" : " const") + (ctx.v == null ? "" : " volatile");
+            return qualify(t, q, ctx.r != null);
+        }
+
+        @Override
+        public CType visitVconstTypeId(GrammarParser.VconstTypeIdContext ctx) {
+            return qualify(visit(ctx.t), " const volatile", ctx.r != null);
+        }
+
+        private CType qualify(final CType t, final String qualifiers, final boolean restrict) {
+            if (!restrict) {
+                return new CType.Qualified(t, qualifiers);
+            }
+            // Like const, restrict applies to the type it prefixes, so
+            // restrict [char] is char *restrict
+            if (!(t instanceof CType.Pointer) && t != ANY_TYPE) {
+                throw new RuntimeException("Only pointers can be restrict, not " + t);
+            }
+            pasteMacroOnce(RESTRICT_MACRO);
+            return new CType.Qualified(t, qualifiers + " CTALK_RESTRICT");
+        }
     }
 
     @Override
@@ -400,26 +984,6 @@ public class Translator extends GrammarBaseVisitor<String> {
         return part;
     }
 
-    @Override
-    public String visitBasicTypeId(GrammarParser.BasicTypeIdContext ctx) {
-        final StringBuilder mod = new StringBuilder();
-        if (ctx.c != null) {
-            mod.append(" const");
-        }
-        if (ctx.v != null) {
-            mod.append(" volatile");
-        }
-        if (mod.length() == 0) {
-            return visit(ctx.t);
-        }
-        return String.format(visit(ctx.t), mod.append(" %s").toString());
-    }
-
-    @Override
-    public String visitVconstTypeId(GrammarParser.VconstTypeIdContext ctx) {
-        return String.format(visit(ctx.t), " const volatile %s");
-    }
-
     @Override
     public String visitStatement(GrammarParser.StatementContext ctx) {
         return visit(ctx.getChild(0)) + ";";
@@ -454,13 +1018,14 @@ public class Translator extends GrammarBaseVisitor<String> {
     @Override
     public String visitExtUnitCall(GrammarParser.ExtUnitCallContext ctx) {
         final String rawName = ctx.n.getText();
-        final String varName = "_C" + rawName.length() + rawName;
+        final String varName = mangler.local(rawName);
         checkCallVisibility(varName);
-        if (!currentVar.type.matches("\\w+")) {
+        final String typeName = currentVar.type.simpleName();
+        if (typeName == null) {
             throw new RuntimeException("Extension function calls only support non-pointer types");
         }
         final String rawFName = ctx.s.getText();
-        final String synthName = currentVar.type + rawFName.length() + rawFName + EXT_FUNC_ID;
+        final String synthName = typeName + mangler.part(rawFName) + EXT_FUNC_ID;
         checkCallVisibility(synthName);
         return synthName + "(&" + varName + ")";
     }
@@ -469,9 +1034,10 @@ public class Translator extends GrammarBaseVisitor<String> {
     @Override
     public String visitExtFuncCall(GrammarParser.ExtFuncCallContext ctx) {
         final String rawName = ctx.n.getText();
-        final String varName = "_C" + rawName.length() + rawName;
+        final String varName = mangler.local(rawName);
         checkCallVisibility(varName);
-        if (!currentVar.type.matches("\\w+")) {
+        final String typeName = currentVar.type.simpleName();
+        if (typeName == null) {
             throw new RuntimeException("Extension function calls only support non-pointer types");
         }
 
@@ -480,7 +1046,7 @@ public class Translator extends GrammarBaseVisitor<String> {
         final String param = ctx.p.stream().map(this::visit).collect(Collectors.joining(","));
         final String vparam = ctx.v.stream().map(this::visit).collect(Collectors.joining());
         final String rawFName = ctx.s.getText();
-        final String synthName = currentVar.type + rawFName.length() + rawFName + EXT_FUNC_ID + textBuf.toString();
+        final String synthName = typeName + mangler.part(rawFName) + EXT_FUNC_ID + textBuf.toString();
         checkCallVisibility(synthName);
         final StringBuilder ret = new StringBuilder()
                 .append(synthName)
@@ -498,55 +1064,71 @@ public class Translator extends GrammarBaseVisitor<String> {
     public static final String EXT_FUNC_ID = "_2of";
 
     private boolean isNameVisible(final String qualId) {
-        for (final Iterator<Deque<LocalVar>> rit = locals.descendingIterator();
-                rit.hasNext();) {
-            for (final Iterator<LocalVar> vars = rit.next().descendingIterator();
-                    vars.hasNext();) {
-                final LocalVar cvar = vars.next();
-                if (cvar.sameName(qualId)) {
-                    currentVar = cvar;
-                    return true;
-                }
-            }
+        final LocalVar cvar = locals.lookup(qualId);
+        if (cvar != null) {
+            currentVar = cvar;
+            return true;
         }
 
         final NsInfo info = nsInfo.get(qualId);
         if (info == null) {
             throw new RuntimeException(NsInfo.toExternalName(qualId) + " does not exist! Maybe you forgot to import?");
         }
+        if (currentDecl != null) {
+            currentDecl.refs.add(qualId);
+        }
 
         switch (info.visibility) {
         case EXPORT:
             return true;
-        case INTERNAL: {
-            // Internal is current and child
-            // namespaces.
-            mangleScheme = MangleScheme.HIERACHY;
-            final String h = visitNamespace(currentNs.peek());
-            return h.startsWith(info.hierachy.replaceFirst("/.*$", ""));
-        }
+        case INTERNAL:
         case HIDDEN: {
-            // Hidden implies same namespace
-            mangleScheme = MangleScheme.HIERACHY;
-            final String h = visitNamespace(currentNs.peek());
-            return h.equals(info.hierachy);
+            final NsFrame frame = currentFrame();
+            Boolean ret = frame.visible.get(info);
+            if (ret == null) {
+                ret = info.visibility == Visibility.INTERNAL
+                        // Internal is current and child
+                        // namespaces.
+                        ? frame.hierachy.startsWith(info.root)
+                        // Hidden implies same namespace
+                        : frame.hierachy.equals(info.hierachy);
+                frame.visible.put(info, ret);
+            }
+            return ret;
         }
         default:
             throw new RuntimeException("Unhandled visibility of " + info);
         }
     }
 
-    private void checkCallVisibility(final String qualId) {
+    private void checkVisibility(final String qualId) {
         if (!isNameVisible(qualId)) {
             throw new RuntimeException("Illegal referencing to "
                     + NsInfo.toExternalName(qualId) + " from "
-                    + (currentNs.peek() == null
-                    ? "nameless module"
-                    : ("module " + currentNs.peek().getText()))
+                    + currentModuleName()
                     + ": not visible");
         }
     }
 
+    private void checkCallVisibility(final String qualId) {
+        checkVisibility(qualId);
+        // C99 6.7.4p3: other translation units get the inline definition,
+        // where hidden functions and module variables do not exist
+        if (externalInline && locals.lookup(qualId) == null
+                && nsInfo.get(qualId).visibility == Visibility.HIDDEN) {
+            throw new RuntimeException("Illegal referencing to "
+                    + NsInfo.toExternalName(qualId) + " from "
+                    + currentModuleName()
+                    + ": hidden names cannot be used by inline functions that are not hidden");
+        }
+    }
+
+    private String currentModuleName() {
+        return currentNs.isEmpty()
+                ? "nameless module"
+                : ("module " + currentNs.peek().text);
+    }
+
     @Override
     public String visitParamFuncCall(GrammarParser.ParamFuncCallContext ctx) {
         final String old = textBuf.toString();
@@ -566,7 +1148,7 @@ public class Translator extends GrammarBaseVisitor<String> {
     @Override
     public String visitParameter(GrammarParser.ParameterContext ctx) {
         final String rawPName = ctx.getChild(0).getText();
-        textBuf.append('_').append(rawPName.length()).append(rawPName);
+        textBuf.append(mangler.selector(rawPName));
         return visit(ctx.getChild(2));
     }
 
@@ -646,7 +1228,7 @@ public class Translator extends GrammarBaseVisitor<String> {
 
     @Override
     public String visitCastExpr(GrammarParser.CastExprContext ctx) {
-        return "((" + String.format(visit(ctx.t), "") + ")" + visit(ctx.e) + ")";
+        return "((" + types.visit(ctx.t).abstractDeclarator() + ")" + visit(ctx.e) + ")";
     }
 
     @Override
@@ -665,7 +1247,7 @@ public class Translator extends GrammarBaseVisitor<String> {
 
     @Override
     public String visitTypeSizeExpr(GrammarParser.TypeSizeExprContext ctx) {
-        return "(sizeof(" + String.format(visit(ctx.t), "") + "))";
+        return "(sizeof(" + types.visit(ctx.t).abstractDeclarator() + "))";
     }
 
     @Override
@@ -701,7 +1283,7 @@ public class Translator extends GrammarBaseVisitor<String> {
         return sb.append(ctx.t.stream()
                 .map(e -> {
                     final String rawName = e.n.getText();
-                    return e.getChild(0).getText() + "_C" + rawName.length() + rawName;
+                    return e.getChild(0).getText() + mangler.local(rawName);
                 })
                 .collect(Collectors.joining()))
                 .append(sel).toString();
@@ -712,10 +1294,20 @@ public class Translator extends GrammarBaseVisitor<String> {
         return ctx.s.getText();
     }
 
+    private NsFrame currentFrame() {
+        return currentNs.isEmpty() ? topFrame : currentNs.peek();
+    }
+
     @Override
     public String visitDefModule(GrammarParser.DefModuleContext ctx) {
-        currentNs.push(ctx.ns);
-        final String ret = ctx.b.stream().map(this::visit).collect(Collectors.joining("\n"));
+        currentNs.push(nsFrames.computeIfAbsent(ctx.ns.getText(), k -> new NsFrame(k, mangler)));
+        final String ret;
+        if (procState == ProcState.GEN_SYM) {
+            ctx.b.forEach(this::visit);
+            ret = "";
+        } else {
+            ret = ctx.b.stream().map(this::visit).collect(Collectors.joining("\n"));
+        }
         currentNs.pop();
         return ret;
     }
@@ -768,23 +1360,142 @@ public class Translator extends GrammarBaseVisitor<String> {
                     throw new RuntimeException(e);
                 }
             }
-            if (currentFile.contains(f)) {
-                // Special case where the initial file
-                // tries to import itself!
-                importSet.add(qualId);
-                return "";
+            if (!currentFile.contains(f)) {
+                directImports.put(qualId, f);
             }
+            return importModule(qualId, f);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to import module " + qualId + ": " + ex.getMessage());
+        }
+    }
 
-            currentFile.push(f);
+    private String importModule(final String qualId, final URI f) throws IOException {
+        if (importSet.contains(qualId)) {
+            return "";
+        }
+        if (currentFile.contains(f)) {
+            // Special case where the initial file
+            // tries to import itself!
             importSet.add(qualId);
-            final String body = processCharStream(CharStreams.fromStream(f.toURL().openStream()));
+            return "";
+        }
+
+        importSet.add(qualId);
+        try (final CompileStats.Span span = stats.begin("import", mangler.externalName(qualId))) {
+            if (interfaceDir != null) {
+                return importInterface(qualId, f);
+            }
+            final GrammarParser.ProgramContext tree = moduleCache.get(f, programParser);
+            span.countTree(tree);
+            currentFile.push(f);
+            final String body = visitProgram(tree);
             currentFile.pop();
             return body;
-        } catch (IOException ex) {
-            throw new RuntimeException("Failed to import module " + qualId + ": " + ex.getMessage());
         }
     }
 
+    private String importInterface(final String qualId, final URI f) throws IOException {
+        final ModuleInterface mi = loadInterface(qualId, f);
+        // Modules imported by the interface come first
+        final StringBuilder body = new StringBuilder();
+        for (final ModuleInterface.Dependency dep : mi.deps) {
+            body.append(importModule(dep.qualId, dep.source)).append('\n');
+        }
+        nsInfo.putAll(mi.symbols);
+        importedSymbols.addAll(mi.symbols.keySet());
+        if (!replayImports) {
+            return "";
+        }
+        switch (procState) {
+        case GEN_SYM:
+            pasteInclude.append(mi.includes);
+            pasteTypedef.append(mi.typedefs);
+            pasteMacro.append(mi.macros);
+            head.append(mi.prototypes);
+            return "";
+        case GEN_CODE:
+            return body.append(mi.inlines).append('\n').append(mi.body).toString();
+        default:
+            throw new RuntimeException("Unhandled process state of " + procState);
+        }
+    }
+
+    private ModuleInterface loadInterface(final String qualId, final URI f) throws IOException {
+        ModuleInterface mi = interfaces.get(f);
+        if (mi != null) {
+            return mi;
+        }
+
+        final long checksum = ModuleCache.checksum(ModuleCache.readAll(f));
+        final Path file = ModuleInterface.pathFor(interfaceDir, qualId, f);
+        if (Files.isRegularFile(file)) {
+            try {
+                mi = ModuleInterface.read(file);
+                if (isUpToDate(mi, f, checksum)) {
+                    interfaces.put(f, mi);
+                    return mi;
+                }
+            } catch (IOException ex) {
+                // Unreadable or from an older version, rebuild it
+            }
+        }
+
+        building.add(f);
+        try {
+            mi = buildInterface(qualId, f, checksum);
+        } finally {
+            building.remove(f);
+        }
+        rebuilt.add(f);
+        mi.write(file);
+        interfaces.put(f, mi);
+        return mi;
+    }
+
+    private boolean isUpToDate(final ModuleInterface mi, final URI f, final long checksum) throws IOException {
+        if (mi.format != ModuleInterface.FORMAT
+                || mi.sourceChecksum != checksum
+                || !f.equals(mi.source)) {
+            return false;
+        }
+        for (final ModuleInterface.Dependency dep : mi.deps) {
+            if (building.contains(dep.source)
+                    || loadInterface(dep.qualId, dep.source).interfaceHash != dep.interfaceHash) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ModuleInterface buildInterface(final String qualId, final URI f, final long checksum) throws IOException {
+        final GrammarParser.ProgramContext tree = moduleCache.get(f, programParser);
+        final Translator child = new Translator(this, f);
+        child.procState = ProcState.GEN_SYM;
+        child.collectSymbols(tree);
+        child.importSet.clear();
+        child.procState = ProcState.GEN_CODE;
+        final String body = child.visitProgram(tree);
+
+        final ModuleInterface mi = new ModuleInterface(qualId, f, checksum);
+        for (final Map.Entry<String, URI> dep : child.directImports.entrySet()) {
+            final ModuleInterface depInterface = interfaces.get(dep.getValue());
+            mi.deps.add(new ModuleInterface.Dependency(dep.getKey(), dep.getValue(), depInterface.interfaceHash));
+        }
+        child.nsInfo.forEach((k, v) -> {
+            if (!child.importedSymbols.contains(k)) {
+                mi.symbols.put(k, v);
+            }
+        });
+        mi.includes = child.pasteInclude.toString();
+        mi.typedefs = child.forwardTypedef.toString() + child.pasteTypedef;
+        mi.macros = child.pasteMacro.toString();
+        mi.prototypes = child.head.toString();
+        mi.inlines = child.pasteInline.toString();
+        mi.body = body;
+        mi.updateInterfaceHash();
+        return mi;
+    }
+
     @Override
     public String visitIncludeLocal(GrammarParser.IncludeLocalContext ctx) {
         if (procState == ProcState.GEN_SYM) {
@@ -802,43 +1513,28 @@ public class Translator extends GrammarBaseVisitor<String> {
     }
 
     public String processCharStream(CharStream st) throws RecognitionException {
-        final GrammarLexer lex = new GrammarLexer(st);
-        final TokenStream toks = new CommonTokenStream(lex);
-        final GrammarParser parser = new GrammarParser(toks);
-        final String body = this.visitProgram(parser.program());
+        final String body = this.visitProgram(programParser.parse(st));
         return body;
     }
 
     @Override
     public String visitDefExternFunction(GrammarParser.DefExternFunctionContext ctx) {
-        final String retType = ctx.r == null ? "void %s" : visit(ctx.r);
+        final CType retType = ctx.r == null ? CType.VOID : types.visit(ctx.r);
         final String tmp = textBuf.toString();
         textBuf.setLength(0);
         // Provide dummy scope
-        locals.add(new ArrayDeque<>());
+        locals.push();
         paramSeparator = ",";
         final String params = visit(ctx.p);
-        locals.removeLast();
+        locals.pop();
         // Parameters *MUST* be processed before name
-        mangleScheme = MangleScheme.INTERNAL;
+        final NsFrame frame = currentFrame();
         final String rawName = ctx.n.getText();
-        final String name = visitNamespace(currentNs.peek()) + rawName.length() + rawName + textBuf.toString();
-        mangleScheme = MangleScheme.HIERACHY;
-        {
-            final String prior = currentNs.peek() == null ? "" : (currentNs.peek().getText() + "::");
-            nsInfo.put(name, new NsInfo(visibility, prior + rawName.length() + rawName, visitNamespace(currentNs.peek())));
-        }
+        final String name = frame.internal + mangler.part(rawName) + textBuf.toString();
+        declareSymbol(name, new NsInfo(visibility, frame.prior + mangler.part(rawName), frame.hierachy));
         textBuf.setLength(0);
         textBuf.append(tmp);
-        final StringBuilder body = new StringBuilder();
-        if (!retType.equals("void %s")) {
-            body.append("return ");
-        }
-        {
-            final String e = ctx.e.getText();
-            body.append(e.substring(1, e.length() - 1));
-        }
-        final String proto = String.format(retType, name + " " + params);
+        final String proto = retType.declare(name + " " + params);
         switch (procState) {
         case GEN_SYM:
             switch (visibility) {
@@ -852,9 +1548,17 @@ public class Translator extends GrammarBaseVisitor<String> {
             default:
                 throw new AssertionError("Visibility of " + visibility + " not handled!");
             }
-            head.append(' ').append(proto).append(";\n");
+            head.append(' ').append(proto).append(attributeList(attributeSet(ctx.a))).append(";\n");
             return "";
         case GEN_CODE:
+            final StringBuilder body = new StringBuilder();
+            if (retType != CType.VOID) {
+                body.append("return ");
+            }
+            {
+                final String e = ctx.e.getText();
+                body.append(e.substring(1, e.length() - 1));
+            }
             body.append('(').append(Arrays.stream(params.split(","))
                     .map(e -> e.split("_C"))
                     .map(e -> e[e.length - 1])
@@ -872,14 +1576,10 @@ public class Translator extends GrammarBaseVisitor<String> {
             textBuf.setLength(0);
             final String params = ctx.p == null ? "" : visit(ctx.p);
             // Parameters *MUST* be processed before name
-            mangleScheme = MangleScheme.INTERNAL;
+            final NsFrame frame = currentFrame();
             final String rawName = ctx.n.getText();
-            final String name = visitNamespace(currentNs.peek()) + rawName.length() + rawName + textBuf.toString();
-            mangleScheme = MangleScheme.HIERACHY;
-            {
-                final String prior = currentNs.peek() == null ? "" : (currentNs.peek().getText() + "::");
-                nsInfo.put(name, new NsInfo(visibility, prior + rawName.length() + rawName, visitNamespace(currentNs.peek())));
-            }
+            final String name = frame.internal + mangler.part(rawName) + textBuf.toString();
+            declareSymbol(name, new NsInfo(visibility, frame.prior + mangler.part(rawName), frame.hierachy));
             textBuf.setLength(0);
             textBuf.append(tmp);
             pasteMacro.append("#define ").append(name).append(params).append(' ');
@@ -903,7 +1603,7 @@ public class Translator extends GrammarBaseVisitor<String> {
         final StringBuilder sb = new StringBuilder("(");
         for (int i = 0; i < ctx.getChildCount(); i += 2) {
             final String name = ctx.getChild(i).getText();
-            textBuf.append('_').append(name.length()).append(name);
+            textBuf.append(mangler.selector(name));
             sb.append(name).append(',');
         }
         if (ctx.v == null) {
@@ -920,14 +1620,10 @@ public class Translator extends GrammarBaseVisitor<String> {
             String externTypeName = ctx.e.getText();
             externTypeName = externTypeName.substring(1, externTypeName.length() - 1);
 
-            mangleScheme = MangleScheme.INTERNAL;
+            final NsFrame frame = currentFrame();
             final String tname = ctx.n.getText();
-            final String name = visitNamespace(currentNs.peek()) + tname.length() + tname;
-            mangleScheme = MangleScheme.HIERACHY;
-            {
-                final String prior = currentNs.peek() == null ? "" : (currentNs.peek().getText() + "::");
-                nsInfo.put(name, new NsInfo(visibility, prior + tname.length() + tname, visitNamespace(currentNs.peek())));
-            }
+            final String name = frame.internal + mangler.part(tname);
+            declareSymbol(name, new NsInfo(visibility, frame.prior + mangler.part(tname), frame.hierachy));
             pasteTypedef.append("typedef ").append(externTypeName).append(' ').append(name).append(";\n");
         }
         return "";
@@ -936,26 +1632,22 @@ public class Translator extends GrammarBaseVisitor<String> {
     @Override
     public String visitDefStruct(GrammarParser.DefStructContext ctx) {
         if (procState == ProcState.GEN_SYM) {
-            mangleScheme = MangleScheme.INTERNAL;
+            final NsFrame frame = currentFrame();
             final String tname = ctx.n.getText();
-            final String name = visitNamespace(currentNs.peek()) + tname.length() + tname;
-            mangleScheme = MangleScheme.HIERACHY;
-            {
-                final String prior = currentNs.peek() == null ? "" : (currentNs.peek().getText() + "::");
-                nsInfo.put(name, new NsInfo(visibility, prior + tname.length() + tname, visitNamespace(currentNs.peek())));
-            }
+            final String name = frame.internal + mangler.part(tname);
+            declareSymbol(name, new NsInfo(visibility, frame.prior + mangler.part(tname), frame.hierachy));
             // Provide dummy scope
-            locals.add(new ArrayDeque<>());
+            locals.push();
             paramSeparator = ";";
             final String typedefLine = new StringBuilder()
                     .append("typedef struct ").append(name)
                     .append(' ').append(name).append(";\n").toString();
-            pasteTypedef.insert(0, typedefLine)
-                    .append("struct ").append(name).append("\n{\n");
+            forwardTypedef.insert(0, typedefLine);
+            pasteTypedef.append("struct ").append(name).append("\n{\n");
             for (int i = 2; i < ctx.getChildCount() - 1; i += 2) {
                 pasteTypedef.append(visit(ctx.getChild(i))).append(";\n");
             }
-            locals.removeLast();
+            locals.pop();
             pasteTypedef.append("};\n");
         }
         return "";
@@ -964,26 +1656,22 @@ public class Translator extends GrammarBaseVisitor<String> {
     @Override
     public String visitDefUnion(GrammarParser.DefUnionContext ctx) {
         if (procState == ProcState.GEN_SYM) {
-            mangleScheme = MangleScheme.INTERNAL;
+            final NsFrame frame = currentFrame();
             final String tname = ctx.n.getText();
-            final String name = visitNamespace(currentNs.peek()) + tname.length() + tname;
-            mangleScheme = MangleScheme.HIERACHY;
-            {
-                final String prior = currentNs.peek() == null ? "" : (currentNs.peek().getText() + "::");
-                nsInfo.put(name, new NsInfo(visibility, prior + tname.length() + tname, visitNamespace(currentNs.peek())));
-            }
+            final String name = frame.internal + mangler.part(tname);
+            declareSymbol(name, new NsInfo(visibility, frame.prior + mangler.part(tname), frame.hierachy));
             // Provide dummy scope
-            locals.add(new ArrayDeque<>());
+            locals.push();
             paramSeparator = ";";
             final String typedefLine = new StringBuilder()
                     .append("typedef union ").append(name)
                     .append(' ').append(name).append(";\n").toString();
-            pasteTypedef.insert(0, typedefLine)
-                    .append("union ").append(name).append("\n{\n");
+            forwardTypedef.insert(0, typedefLine);
+            pasteTypedef.append("union ").append(name).append("\n{\n");
             for (int i = 2; i < ctx.getChildCount() - 1; i += 2) {
                 pasteTypedef.append(visit(ctx.getChild(i))).append(";\n");
             }
-            locals.removeLast();
+            locals.pop();
             pasteTypedef.append("};\n");
         }
         return "";
@@ -994,11 +1682,11 @@ public class Translator extends GrammarBaseVisitor<String> {
         if (ctx.s.isEmpty()) {
             return "";
         }
-        locals.add(new ArrayDeque<>());
+        locals.push();
         final String body = ctx.s.stream()
                 .map(this::visit)
                 .collect(Collectors.joining("\n", "{\n", "\n}//"));
-        locals.removeLast();
+        locals.pop();
         return body;
     }
 
@@ -1026,33 +1714,33 @@ public class Translator extends GrammarBaseVisitor<String> {
 
     @Override
     public String visitCaseFlow(GrammarParser.CaseFlowContext ctx) {
-        locals.add(new ArrayDeque<>());
+        locals.push();
         final String ret = ctx.s.stream()
                 .map(this::visit)
                 .collect(Collectors.joining("\n",
-                                            "case " + visit(ctx.e) + ":\n{\n",
+                                            "case " + visit(ctx.e) + ":\n{\n" + coldLabel(ctx.h),
                                             "\n}"));
-        locals.removeLast();
+        locals.pop();
         return ret;
     }
 
     @Override
     public String visitDefaultFlow(GrammarParser.DefaultFlowContext ctx) {
-        locals.add(new ArrayDeque<>());
+        locals.push();
         final String ret = ctx.s.stream()
                 .map(this::visit)
-                .collect(Collectors.joining("\n", "default:\n{\n", "\n}"));
-        locals.removeLast();
+                .collect(Collectors.joining("\n", "default:\n{\n" + coldLabel(ctx.h), "\n}"));
+        locals.pop();
         return ret;
     }
 
     @Override
     public String visitForFlow(GrammarParser.ForFlowContext ctx) {
-        locals.add(new ArrayDeque<>());
+        locals.push();
         final String stmts = ctx.s.isEmpty() ? "{\n}//" : ctx.s.stream()
                 .map(this::visit)
                 .collect(Collectors.joining("\n", "{\n", "\n}//"));
-        locals.removeLast();
+        locals.pop();
         return "for (" + visit(ctx.c) + ")\n" + stmts;
     }
 
@@ -1073,16 +1761,27 @@ public class Translator extends GrammarBaseVisitor<String> {
         return sb.toString();
     }
 
+    private String condition(final GrammarParser.BranchHintContext hint, final GrammarParser.ExpressionContext c) {
+        if (hint == null) {
+            return visit(c);
+        }
+        return (hint.K_LIKELY() != null ? "CTALK_LIKELY(" : "CTALK_UNLIKELY(") + visit(c) + ")";
+    }
+
+    private String coldLabel(final Token hint) {
+        return hint == null ? "" : "CTALK_COLD_LABEL(_Ccold" + (++coldLabels) + ")\n";
+    }
+
     @Override
     public String visitIfFlow(GrammarParser.IfFlowContext ctx) {
-        locals.add(new ArrayDeque<>());
+        locals.push();
         final StringBuilder tmp = new StringBuilder()
                 .append(ctx.s.stream()
                         .map(this::visit)
                         .collect(Collectors.joining("\n",
-                                                    "if (" + visit(ctx.c) + ")\n{\n",
+                                                    "if (" + condition(ctx.h, ctx.c) + ")\n{\n",
                                                     "\n}//")));
-        locals.removeLast();
+        locals.pop();
         if (!ctx.a.isEmpty()) {
             tmp.append(ctx.a.stream()
                     .map(this::visit)
@@ -1096,23 +1795,23 @@ public class Translator extends GrammarBaseVisitor<String> {
 
     @Override
     public String visitElseIfFlow(GrammarParser.ElseIfFlowContext ctx) {
-        locals.add(new ArrayDeque<>());
+        locals.push();
         final String ret = ctx.s.stream()
                 .map(this::visit)
                 .collect(Collectors.joining("\n",
-                                            "else if (" + visit(ctx.c) + ")\n{\n",
+                                            "else if (" + condition(ctx.h, ctx.c) + ")\n{\n",
                                             "\n}//"));
-        locals.removeLast();
+        locals.pop();
         return ret;
     }
 
     @Override
     public String visitElseFlow(GrammarParser.ElseFlowContext ctx) {
-        locals.add(new ArrayDeque<>());
+        locals.push();
         final String ret = ctx.s.stream()
                 .map(this::visit)
                 .collect(Collectors.joining("\n", "else\n{\n", "\n}//"));
-        locals.removeLast();
+        locals.pop();
         return ret;
     }
 
@@ -0,0 +1,26 @@
+/* Same as vecloop.ct but with a hand-written growable array */
+#include <stdio.h>
+#include <stdlib.h>
+
+int main(int argc, char **argv)
+{
+    long n = argc > 1 ? atol(argv[1]) : 10000000;
+    long sum = 0;
+    for (long r = 0; r < 10; ++r) {
+        long *data = NULL;
+        size_t len = 0, cap = 0;
+        for (long i = 0; i < n; ++i) {
+            if (len == cap) {
+                cap = cap < 4 ? 4 : cap * 2;
+                data = realloc(data, cap * sizeof *data);
+            }
+            data[len++] = i ^ r;
+        }
+        for (long i = 0; i < n; ++i) {
+            sum += data[i];
+        }
+        free(data);
+    }
+    printf("%ld\n", sum);
+    return 0;
+}